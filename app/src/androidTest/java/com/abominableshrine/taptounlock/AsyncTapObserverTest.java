@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncTapObserverTest extends TestCase implements ITapDetector.TapObserver {
+
+    private HandlerThread thread;
+    private Handler handler;
+    private ArrayList<Long> timestamps;
+    private ArrayList<Thread> threads;
+    private CountDownLatch delivered;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.thread = new HandlerThread(AsyncTapObserverTest.class.getSimpleName());
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+        this.timestamps = new ArrayList<>();
+        this.threads = new ArrayList<>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.thread.quit();
+        super.tearDown();
+    }
+
+    public void testDeliversOnHandlerThread() throws Exception {
+        this.delivered = new CountDownLatch(3);
+        AsyncTapObserver o = new AsyncTapObserver(this, this.handler, 4);
+
+        o.onTap(1, 1, DeviceSide.ANY);
+        o.onTap(2, 2, DeviceSide.ANY);
+        o.onTapRetracted(2, 3, DeviceSide.ANY);
+
+        assertTrue(this.delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, this.timestamps.size());
+        assertEquals(1L, (long) this.timestamps.get(0));
+        for (Thread t : this.threads) {
+            assertEquals(this.thread, t);
+        }
+        assertEquals(0, o.getDroppedCount());
+    }
+
+    public void testCountsDroppedTapsOfStalledObserver() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        this.delivered = new CountDownLatch(4);
+        AsyncTapObserver o = new AsyncTapObserver(this, this.handler, 4);
+
+        for (int i = 0; i < 6; i++) {
+            o.onTap(i, i, DeviceSide.ANY);
+        }
+        assertEquals(2, o.getDroppedCount());
+
+        release.countDown();
+        assertTrue(this.delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(4, this.timestamps.size());
+        assertEquals(3L, (long) this.timestamps.get(3));
+    }
+
+    @Override
+    public void onTap(long timestamp, long now, DeviceSide side) {
+        this.timestamps.add(timestamp);
+        this.threads.add(Thread.currentThread());
+        this.delivered.countDown();
+    }
+
+    @Override
+    public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+        assertEquals(timestamp, (long) this.timestamps.remove(this.timestamps.size() - 1));
+        this.threads.add(Thread.currentThread());
+        this.delivered.countDown();
+    }
+}
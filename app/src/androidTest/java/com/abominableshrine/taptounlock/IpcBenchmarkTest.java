@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.abominableshrine.taptounlock.mocks.MockTapDetector;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares the round trip time of recent taps requests through the Messenger and the
+ * {@link ITapPatternDetector} interface of the service
+ * <p/>
+ * The test runs in the process of the service, so this measures the cost of both protocols
+ * without the cost of crossing processes. The clients skip the direct call to the local service,
+ * see {@link TapPatternDetectorClient#TapPatternDetectorClient(IBinder, boolean)}, or both would
+ * take the same path. The clients take turns in several batches and the fastest batch of each
+ * counts, so a garbage collection or a busy device hits both alike.
+ * <p/>
+ * The times are too close to rank the protocols reliably, the test only fails if the typed
+ * interface is clearly slower than the Messenger it is meant to replace.
+ */
+public class IpcBenchmarkTest extends AndroidTestCase {
+
+    private static final int WARM_UP = 20;
+    private static final int BATCHES = 5;
+    private static final int ROUND_TRIPS = 100;
+    /**
+     * How many times the round trip of the typed interface may take that of the Messenger
+     */
+    private static final int MAX_SLOWDOWN = 2;
+
+    private Intent intent;
+    private ArrayList<ServiceConnection> connections;
+    private HandlerThread clientThread;
+    private Semaphore responses;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        MockTapDetector.isAsync = true;
+        MockTapDetector.delay = 1000000000;
+        MockTapDetector.now = SystemClock.elapsedRealtimeNanos();
+
+        this.intent = new Intent(this.getContext(), TapPatternDetectorService.class);
+        this.intent.putExtra(TapPatternDetectorService.KEY_TAP_DETECTOR_CLASS, MockTapDetector.class);
+        this.getContext().startService(this.intent);
+
+        this.connections = new ArrayList<>();
+        this.clientThread = new HandlerThread("IpcBenchmarkClient");
+        this.clientThread.start();
+        this.responses = new Semaphore(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ServiceConnection c : this.connections) {
+            this.getContext().unbindService(c);
+        }
+        this.getContext().stopService(this.intent);
+        while (Utils.isServiceRunning(getContext(), TapPatternDetectorService.class)) {
+            Thread.sleep(100);
+        }
+        this.clientThread.quit();
+        super.tearDown();
+    }
+
+    private IBinder bind(Intent intent) throws Exception {
+        final AtomicReference<IBinder> binder = new AtomicReference<>();
+        ServiceConnection c = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+                binder.set(iBinder);
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName componentName) {
+            }
+        };
+        this.getContext().bindService(intent, c, Context.BIND_AUTO_CREATE);
+        this.connections.add(c);
+        while (null == binder.get()) {
+            Thread.sleep(10);
+        }
+        return binder.get();
+    }
+
+    /**
+     * Create a client on the client thread, so its callbacks do not wait for the test thread
+     */
+    private TapPatternDetectorClient createClient(final IBinder binder) throws Exception {
+        final AtomicReference<TapPatternDetectorClient> client = new AtomicReference<>();
+        final CountDownLatch created = new CountDownLatch(1);
+        new Handler(this.clientThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                client.set(new TapPatternDetectorClient(binder, false) {
+                    @Override
+                    public void onRecentTapsResponse(TapPattern pattern) {
+                        responses.release();
+                    }
+
+                    @Override
+                    public void onPatternMatch(TapPattern pattern) {
+                    }
+                });
+                created.countDown();
+            }
+        });
+        assertTrue(created.await(1, TimeUnit.SECONDS));
+        return client.get();
+    }
+
+    private void roundTrip(TapPatternDetectorClient client) throws RemoteException, InterruptedException {
+        client.requestRecentTaps(-5000000000L, -1);
+        assertTrue(this.responses.tryAcquire(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return The mean round trip time in nanoseconds
+     */
+    private long measureRoundTrips(TapPatternDetectorClient client) throws Exception {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ROUND_TRIPS; i++) {
+            this.roundTrip(client);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / ROUND_TRIPS;
+    }
+
+    public void testRecentTapsRoundTrip() throws Exception {
+        TapPatternDetectorClient messengerClient = this.createClient(this.bind(this.intent));
+        Intent detectorIntent = new Intent(this.intent).setAction(TapPatternDetectorService.ACTION_BIND_DETECTOR);
+        TapPatternDetectorClient detectorClient = this.createClient(this.bind(detectorIntent));
+        for (int i = 0; i < WARM_UP; i++) {
+            this.roundTrip(messengerClient);
+            this.roundTrip(detectorClient);
+        }
+
+        long messenger = Long.MAX_VALUE;
+        long detector = Long.MAX_VALUE;
+        for (int i = 0; i < BATCHES; i++) {
+            messenger = Math.min(messenger, this.measureRoundTrips(messengerClient));
+            detector = Math.min(detector, this.measureRoundTrips(detectorClient));
+        }
+
+        Log.i("IpcBenchmarkTest", String.format("Recent taps round trip: Messenger %d ns, ITapPatternDetector %d ns", messenger, detector));
+        assertTrue(String.format("ITapPatternDetector took %d ns, Messenger %d ns", detector, messenger),
+                detector <= MAX_SLOWDOWN * messenger);
+    }
+}
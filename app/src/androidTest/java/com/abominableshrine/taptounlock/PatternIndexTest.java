@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class PatternIndexTest extends TestCase {
+
+    private static final DeviceSide SIDES[] = {DeviceSide.ANY, DeviceSide.BACK, DeviceSide.FRONT, DeviceSide.LEFT};
+
+    private TapHistory history;
+    private PatternIndex<Integer> index;
+    private ArrayList<Integer> matched;
+    private long time;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        history = new TapHistory(64, Long.MAX_VALUE);
+        index = new PatternIndex<>();
+        matched = new ArrayList<>();
+        time = 1000000000L;
+    }
+
+    private void tap(DeviceSide side, long pause) {
+        time += pause;
+        history.add(time, side);
+        matched.clear();
+        index.onTap(history, matched);
+    }
+
+    private static TapPattern pattern(DeviceSide first, DeviceSide rest, long pause, int size) {
+        TapPattern.Builder b = new TapPattern.Builder().appendTap(first, 0);
+        for (int i = 1; i < size; i++) {
+            b.appendTap(rest, pause);
+        }
+        return b.build();
+    }
+
+    public void testReportsMatches() {
+        index.add(new PatternMatcher(pattern(DeviceSide.BACK, DeviceSide.BACK, 200000000L, 3)), 1);
+        index.add(new PatternMatcher(pattern(DeviceSide.FRONT, DeviceSide.BACK, 200000000L, 2)), 2);
+        index.add(new PatternMatcher(pattern(DeviceSide.ANY, DeviceSide.BACK, 200000000L, 2)), 3);
+        assertEquals(3, index.size());
+
+        tap(DeviceSide.BACK, 0);
+        assertTrue(matched.isEmpty());
+        tap(DeviceSide.BACK, 200000000L);
+        assertEquals(1, matched.size());
+        assertEquals(3, (int) matched.get(0));
+        tap(DeviceSide.BACK, 200000000L);
+        assertEquals(2, matched.size());
+        assertTrue(matched.contains(1));
+        assertTrue(matched.contains(3));
+    }
+
+    public void testOnlyCandidatesBecomeActive() {
+        index.add(new PatternMatcher(pattern(DeviceSide.BACK, DeviceSide.BACK, 200000000L, 3)), 1);
+        index.add(new PatternMatcher(pattern(DeviceSide.FRONT, DeviceSide.FRONT, 200000000L, 3)), 2);
+
+        tap(DeviceSide.LEFT, 0);
+        assertEquals(0, index.activeCount());
+        tap(DeviceSide.BACK, 200000000L);
+        assertEquals(1, index.activeCount());
+        tap(DeviceSide.ANY, 200000000L);
+        assertEquals(2, index.activeCount());
+        // Too long a pause for any partial match
+        tap(DeviceSide.LEFT, 5000000000L);
+        assertEquals(0, index.activeCount());
+    }
+
+    public void testRemove() {
+        index.add(new PatternMatcher(pattern(DeviceSide.BACK, DeviceSide.BACK, 200000000L, 2)), 1);
+        tap(DeviceSide.BACK, 0);
+        assertTrue(index.remove(1));
+        assertFalse(index.remove(1));
+        assertEquals(0, index.size());
+        assertEquals(0, index.activeCount());
+        tap(DeviceSide.BACK, 200000000L);
+        assertTrue(matched.isEmpty());
+    }
+
+    public void testRemoveKeepsOtherMatchers() {
+        for (int i = 0; i < 4; i++) {
+            index.add(new PatternMatcher(pattern(DeviceSide.BACK, DeviceSide.BACK, 200000000L, 1 + i)), i);
+        }
+        assertTrue(index.remove(0));
+        assertTrue(index.remove(2));
+        assertEquals(2, index.size());
+
+        tap(DeviceSide.BACK, 0);
+        tap(DeviceSide.BACK, 200000000L);
+        tap(DeviceSide.BACK, 200000000L);
+        tap(DeviceSide.BACK, 200000000L);
+        assertEquals(2, matched.size());
+        assertTrue(matched.contains(1));
+        assertTrue(matched.contains(3));
+    }
+
+    public void testRemoveActiveKeepsOtherActiveMatchers() {
+        for (int i = 0; i < 4; i++) {
+            index.add(new PatternMatcher(pattern(DeviceSide.BACK, DeviceSide.BACK, 200000000L, 3)), i);
+        }
+        tap(DeviceSide.BACK, 0);
+        assertEquals(4, index.activeCount());
+        assertTrue(index.remove(0));
+        assertTrue(index.remove(2));
+        assertEquals(2, index.activeCount());
+
+        tap(DeviceSide.BACK, 200000000L);
+        assertTrue(index.remove(3));
+        assertEquals(1, index.activeCount());
+        tap(DeviceSide.BACK, 200000000L);
+        assertEquals(1, matched.size());
+        assertEquals(1, (int) matched.get(0));
+    }
+
+    public void testAddTwiceThrows() {
+        index.add(new PatternMatcher(pattern(DeviceSide.BACK, DeviceSide.BACK, 200000000L, 2)), 1);
+        try {
+            index.add(new PatternMatcher(pattern(DeviceSide.FRONT, DeviceSide.BACK, 200000000L, 2)), 1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testResetAfterRetraction() {
+        index.add(new PatternMatcher(pattern(DeviceSide.BACK, DeviceSide.BACK, 200000000L, 2)), 1);
+        tap(DeviceSide.BACK, 0);
+        tap(DeviceSide.FRONT, 100000000L);
+        assertTrue(history.remove(time));
+        time -= 100000000L;
+        index.reset(history);
+
+        tap(DeviceSide.BACK, 200000000L);
+        assertEquals(1, matched.size());
+    }
+
+    public void testAgreesWithMatchingEveryPattern() {
+        Random r = new Random(42);
+        ArrayList<PatternMatcher> all = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            TapPattern.Builder b = new TapPattern.Builder().appendTap(SIDES[r.nextInt(SIDES.length)], 0);
+            int size = 1 + r.nextInt(4);
+            for (int j = 1; j < size; j++) {
+                b.appendTap(SIDES[r.nextInt(SIDES.length)], 100000000L + r.nextInt(300000000));
+            }
+            PatternMatcher m = new PatternMatcher(b.build());
+            all.add(m);
+            index.add(new PatternMatcher(m.getPattern()), i);
+        }
+
+        for (int t = 0; t < 2000; t++) {
+            tap(SIDES[r.nextInt(SIDES.length)], 100000000L + r.nextInt(r.nextInt(8) == 0 ? 2000000000 : 300000000));
+            ArrayList<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < all.size(); i++) {
+                if (all.get(i).onTap(history)) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected.size(), matched.size());
+            assertTrue(matched.containsAll(expected));
+        }
+    }
+}
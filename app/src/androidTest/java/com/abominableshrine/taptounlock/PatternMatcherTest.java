@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class PatternMatcherTest extends TestCase {
+
+    private static final long REFERENCE[] = {225158691L, 222741885L, 769665620L, 695953369L, 673431397L, 1052740898L, 206970215L, 251190185L};
+    private static final long MATCHING[] = {223968506L, 229278565L, 882171631L, 716393942L, 770782471L, 1162902832L, 244018555L, 254455566L};
+
+    private TapHistory history;
+    private long time;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        history = new TapHistory(64, Long.MAX_VALUE);
+        time = 1000000000L;
+    }
+
+    private TapPattern createTapPatternFromArray(long a[], DeviceSide side) {
+        TapPattern.Builder b = new TapPattern.Builder().appendTap(side, 0);
+        for (long interval : a) {
+            b.appendTap(side, interval);
+        }
+        return b.build();
+    }
+
+    private boolean tap(PatternMatcher m, DeviceSide side, long pause) {
+        time += pause;
+        history.add(time, side);
+        return m.onTap(history);
+    }
+
+    /**
+     * Compare the last taps of the history the slow way
+     */
+    private boolean bruteForce(TapPattern p) {
+        int start = history.size() - p.size();
+        if (start < 0) {
+            return false;
+        }
+        TapPattern.Builder b = new TapPattern.Builder();
+        for (int i = start; i < history.size(); i++) {
+            b.appendTap(history.getSide(i), i > start ? history.getTimestamp(i) - history.getTimestamp(i - 1) : 0);
+        }
+        return p.matches(b.build());
+    }
+
+    public void testFindsPatternAfterNoise() {
+        PatternMatcher m = new PatternMatcher(createTapPatternFromArray(REFERENCE, DeviceSide.BACK));
+        assertFalse(tap(m, DeviceSide.BACK, 0));
+        assertFalse(tap(m, DeviceSide.BACK, 3000000000L));
+        assertFalse(tap(m, DeviceSide.BACK, 40000000L));
+
+        assertFalse(tap(m, DeviceSide.BACK, 2000000000L));
+        for (int i = 0; i < MATCHING.length - 1; i++) {
+            assertFalse(tap(m, DeviceSide.BACK, MATCHING[i]));
+        }
+        assertTrue(tap(m, DeviceSide.BACK, MATCHING[MATCHING.length - 1]));
+    }
+
+    public void testRejectsWrongSide() {
+        PatternMatcher m = new PatternMatcher(createTapPatternFromArray(REFERENCE, DeviceSide.BACK));
+        tap(m, DeviceSide.FRONT, 0);
+        for (int i = 0; i < MATCHING.length - 1; i++) {
+            tap(m, DeviceSide.BACK, MATCHING[i]);
+        }
+        assertFalse(tap(m, DeviceSide.BACK, MATCHING[MATCHING.length - 1]));
+    }
+
+    public void testSingleTapPattern() {
+        PatternMatcher m = new PatternMatcher(new TapPattern().appendTap(DeviceSide.LEFT, 0));
+        assertTrue(tap(m, DeviceSide.LEFT, 0));
+        assertFalse(tap(m, DeviceSide.RIGHT, 10));
+        assertTrue(tap(m, DeviceSide.ANY, 10));
+    }
+
+    public void testResetReplaysRecentTaps() {
+        TapPattern p = new TapPattern().appendTap(DeviceSide.BACK, 0)
+                .appendTap(DeviceSide.BACK, 200000000L)
+                .appendTap(DeviceSide.BACK, 200000000L);
+        PatternMatcher m = new PatternMatcher(p);
+        tap(m, DeviceSide.BACK, 0);
+        tap(m, DeviceSide.BACK, 200000000L);
+        // A retracted tap in between
+        tap(m, DeviceSide.BACK, 50000000L);
+        assertTrue(history.remove(time));
+        time -= 50000000L;
+        m.reset(history);
+
+        assertTrue(tap(m, DeviceSide.BACK, 200000000L));
+    }
+
+    public void testNewMatcherPicksUpHistory() {
+        TapPattern p = new TapPattern().appendTap(DeviceSide.BACK, 0)
+                .appendTap(DeviceSide.BACK, 200000000L);
+        PatternMatcher before = new PatternMatcher(p);
+        tap(before, DeviceSide.BACK, 0);
+
+        PatternMatcher m = new PatternMatcher(p);
+        m.reset(history);
+        assertTrue(tap(m, DeviceSide.BACK, 200000000L));
+    }
+
+    public void testAgreesWithMatches() {
+        Random r = new Random(42);
+        TapPattern patterns[] = {
+                createTapPatternFromArray(REFERENCE, DeviceSide.BACK),
+                createTapPatternFromArray(new long[]{200000000L, 200000000L}, DeviceSide.ANY),
+                new TapPattern().appendTap(DeviceSide.LEFT, 0).appendTap(DeviceSide.RIGHT, 300000000L)
+                        .appendTap(DeviceSide.LEFT, 600000000L),
+        };
+        DeviceSide sides[] = {DeviceSide.ANY, DeviceSide.BACK, DeviceSide.LEFT, DeviceSide.RIGHT};
+        PatternMatcher matchers[] = new PatternMatcher[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            matchers[i] = new PatternMatcher(patterns[i]);
+        }
+
+        int matches = 0;
+        for (int t = 0; t < 20000; t++) {
+            // Mostly replay a pattern with jitter so there are plenty of matches
+            TapPattern p = patterns[r.nextInt(patterns.length)];
+            int i = t % p.size();
+            long pause = 1 + (long) (p.getPause(i) * (0.6 + 0.8 * r.nextDouble()));
+            if (0 == i) {
+                pause = 1 + r.nextInt(1000000000);
+            }
+            DeviceSide side = r.nextInt(8) == 0 ? sides[r.nextInt(sides.length)] : p.getSide(i);
+            time += pause;
+            history.add(time, side);
+
+            for (int j = 0; j < patterns.length; j++) {
+                boolean expected = bruteForce(patterns[j]);
+                assertEquals("Tap " + t + " pattern " + j, expected, matchers[j].onTap(history));
+                assertTrue(matchers[j].getLiveCount() < patterns[j].size());
+                if (expected) {
+                    matches++;
+                }
+            }
+        }
+        assertTrue(matches > 100);
+    }
+}
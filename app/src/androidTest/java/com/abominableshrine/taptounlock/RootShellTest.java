@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import junit.framework.TestCase;
+
+public class RootShellTest extends TestCase {
+
+    private RootShell shell;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A plain shell behaves the same without needing a rooted device
+        shell = new RootShell("sh");
+        shell.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        shell.close();
+        super.tearDown();
+    }
+
+    public void testSubmitBeforeStartThrows() {
+        try {
+            new RootShell("sh").submit("true");
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testReportsExitCodeOfLastCommand() throws Exception {
+        RootShell.Job ok = shell.submit("false", "true");
+        RootShell.Job failed = shell.submit("true", "false");
+
+        assertTrue(failed.await(5000));
+        assertTrue(ok.isDone());
+        assertEquals(0, ok.getExitCode());
+        assertEquals(1, failed.getExitCode());
+    }
+
+    public void testReusesShell() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(shell.submit("echo " + i).await(5000));
+        }
+        assertEquals(1, shell.getSpawnCount());
+    }
+
+    public void testIgnoresOutputOfCommands() throws Exception {
+        RootShell.Job job = shell.submit("echo -n partial", "echo RootShell:9", "true");
+        assertTrue(job.await(5000));
+        assertEquals(0, job.getExitCode());
+    }
+
+    public void testRespawnsDeadShell() throws Exception {
+        RootShell.Job exit = shell.submit("exit 3");
+        assertTrue(exit.await(5000));
+        // The job killed its shell after it had been sent, so it is not run again
+        assertEquals(RootShell.FAILED, exit.getExitCode());
+        assertEquals(1, shell.getSpawnCount());
+
+        RootShell.Job job = shell.submit("true");
+        assertTrue(job.await(5000));
+        assertEquals(0, job.getExitCode());
+        assertEquals(2, shell.getSpawnCount());
+    }
+
+    public void testTimesOutHangingJob() throws Exception {
+        RootShell shell = new RootShell(200, "sh");
+        shell.start();
+        try {
+            RootShell.Job hanging = shell.submit("sleep 60");
+            RootShell.Job next = shell.submit("true");
+            assertTrue(hanging.await(5000));
+            assertEquals(RootShell.FAILED, hanging.getExitCode());
+            assertTrue(next.await(5000));
+            assertEquals(0, next.getExitCode());
+        } finally {
+            shell.close();
+        }
+    }
+
+    public void testCloseRunsQueuedJobs() throws Exception {
+        RootShell.Job job = shell.submit("sleep 0.1", "true");
+        shell.close();
+        assertTrue(job.await(5000));
+        assertEquals(0, job.getExitCode());
+    }
+}
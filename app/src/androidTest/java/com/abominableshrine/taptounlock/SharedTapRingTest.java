@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+public class SharedTapRingTest extends AndroidTestCase {
+
+    private static final int CAPACITY = 4;
+
+    private SharedTapRing.Writer writer;
+    private long timestamps[];
+    private DeviceSide sides[];
+    private boolean retractions[];
+    private ByteBuffer region;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        region = ByteBuffer.allocate(SharedTapRing.sizeFor(CAPACITY));
+        writer = new SharedTapRing.Writer(region, CAPACITY);
+        timestamps = new long[8];
+        sides = new DeviceSide[8];
+        retractions = new boolean[8];
+    }
+
+    public void testTooSmallRegionThrows() throws Exception {
+        try {
+            new SharedTapRing.Writer(region, CAPACITY + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testEmptyRing() throws Exception {
+        SharedTapRing.Reader r = new SharedTapRing.Reader(region);
+        assertEquals(0, r.read(timestamps, sides, retractions));
+        assertEquals(0, r.getCursor());
+    }
+
+    public void testReadsTapsSinceLastRead() throws Exception {
+        SharedTapRing.Reader r = new SharedTapRing.Reader(region);
+        writer.offer(1, DeviceSide.LEFT, false);
+        writer.offer(2, DeviceSide.RIGHT, true);
+
+        assertEquals(2, r.read(timestamps, sides, retractions));
+        assertEquals(1, timestamps[0]);
+        assertEquals(DeviceSide.LEFT, sides[0]);
+        assertFalse(retractions[0]);
+        assertEquals(2, timestamps[1]);
+        assertEquals(DeviceSide.RIGHT, sides[1]);
+        assertTrue(retractions[1]);
+        assertEquals(2, r.getCursor());
+        assertEquals(0, r.read(timestamps, sides, retractions));
+
+        writer.offer(3, DeviceSide.TOP, false);
+        assertEquals(1, r.read(timestamps, sides, retractions));
+        assertEquals(3, timestamps[0]);
+    }
+
+    public void testNewReaderStartsAtOldestTap() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            writer.offer(i, DeviceSide.BACK, false);
+        }
+        SharedTapRing.Reader r = new SharedTapRing.Reader(region);
+        assertEquals(2, r.getCursor());
+
+        assertEquals(4, r.read(timestamps, sides, retractions));
+        assertEquals(2, timestamps[0]);
+        assertEquals(5, timestamps[3]);
+        assertEquals(0, r.getMissedCount());
+        assertEquals(6, writer.getCount());
+    }
+
+    public void testCountsMissedTaps() throws Exception {
+        SharedTapRing.Reader r = new SharedTapRing.Reader(region);
+        writer.offer(0, DeviceSide.BACK, false);
+        assertEquals(1, r.read(timestamps, sides, retractions));
+        for (int i = 1; i < 8; i++) {
+            writer.offer(i, DeviceSide.BACK, false);
+        }
+
+        assertEquals(4, r.read(timestamps, sides, retractions));
+        assertEquals(4, timestamps[0]);
+        assertEquals(3, r.getMissedCount());
+        assertEquals(8, r.getCursor());
+    }
+
+    public void testReadsAtMostArrayLength() throws Exception {
+        SharedTapRing.Reader r = new SharedTapRing.Reader(region);
+        for (int i = 0; i < 3; i++) {
+            writer.offer(i, DeviceSide.BACK, false);
+        }
+        long t[] = new long[2];
+        assertEquals(2, r.read(t, sides, retractions));
+        assertEquals(1, r.read(t, sides, retractions));
+        assertEquals(2, t[0]);
+    }
+
+    public void testGivesUpWhileRegionChanges() throws Exception {
+        SharedTapRing.Reader r = new SharedTapRing.Reader(region);
+        writer.offer(1, DeviceSide.LEFT, false);
+        // A writer that died in the middle of an offer leaves the version odd
+        region.putLong(0, region.getLong(0) + 1);
+
+        assertEquals(0, r.read(timestamps, sides, retractions));
+        assertEquals(0, r.getCursor());
+    }
+
+    public void testStopsAtIncompleteSlot() throws Exception {
+        SharedTapRing.Reader r = new SharedTapRing.Reader(region);
+        writer.offer(1, DeviceSide.LEFT, false);
+        writer.offer(2, DeviceSide.RIGHT, false);
+        // The timestamp of the second tap has not arrived yet
+        int second = SharedTapRing.sizeFor(1);
+        long timestamp = region.getLong(second);
+        region.putLong(second, 0);
+
+        assertEquals(1, r.read(timestamps, sides, retractions));
+        assertEquals(1, timestamps[0]);
+        assertEquals(1, r.getCursor());
+
+        region.putLong(second, timestamp);
+        assertEquals(1, r.read(timestamps, sides, retractions));
+        assertEquals(2, timestamps[0]);
+        assertEquals(2, r.getCursor());
+    }
+
+    public void testSharedThroughFile() throws Exception {
+        SharedTapRing.Writer w = SharedTapRing.create(new File(getContext().getCacheDir(), "SharedTapRingTest"), CAPACITY);
+        assertFalse(new File(getContext().getCacheDir(), "SharedTapRingTest").exists());
+        ParcelFileDescriptor pfd = w.share();
+        SharedTapRing.Reader r = SharedTapRing.map(pfd);
+        pfd.close();
+        w.close();
+
+        w.offer(1, DeviceSide.LEFT, false);
+        w.offer(2, DeviceSide.RIGHT, true);
+        assertEquals(2, r.read(timestamps, sides, retractions));
+        assertEquals(1, timestamps[0]);
+        assertEquals(DeviceSide.LEFT, sides[0]);
+        assertEquals(2, timestamps[1]);
+        assertTrue(retractions[1]);
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.abominableshrine.taptounlock;
 
+import android.hardware.Sensor;
+import android.os.Debug;
 import android.test.AndroidTestCase;
 
 import com.abominableshrine.taptounlock.mocks.MockCsvSensor;
@@ -28,6 +30,7 @@ public class TapDetectorTest extends AndroidTestCase implements TapDetector.TapO
     private MockCsvSensor mockCsvSensor;
     private TapDetector detector;
     private ArrayList<Long> detectedTaps;
+    private long maxTapLatency;
 
     @Override
     protected void setUp() throws Exception {
@@ -36,6 +39,7 @@ public class TapDetectorTest extends AndroidTestCase implements TapDetector.TapO
         this.detector = new TapDetector();
         this.detector.registerTapObserver(this);
         this.detectedTaps = new ArrayList<>();
+        this.maxTapLatency = 0;
     }
 
     @Override
@@ -51,8 +55,55 @@ public class TapDetectorTest extends AndroidTestCase implements TapDetector.TapO
         InputStream inputStream = getContext().getResources().openRawResource(res);
         mockCsvSensor = new MockCsvSensor(inputStream);
 
+        long lastTimestamp = 0;
         MockCsvSensor.MockSensorEvent e = mockCsvSensor.nextSensorEvent();
         while (null != e) {
+            this.detector.onSensorChanged(e.timestamp, e.type, e.accuracy, e.values);
+            lastTimestamp = e.timestamp;
+            e = mockCsvSensor.nextSensorEvent();
+        }
+
+        // Speculative taps at the very end of the recording have not been decided yet
+        while (this.detector.isSpeculative() && !this.detectedTaps.isEmpty()
+                && this.detectedTaps.get(this.detectedTaps.size() - 1) > lastTimestamp - this.detector.getPeakWindow()) {
+            this.detectedTaps.remove(this.detectedTaps.size() - 1);
+        }
+
+        assertEquals(taps.length, this.detectedTaps.size());
+        for (int i = 0; i < taps.length; i++) {
+            assertEquals(taps[i], this.detectedTaps.get(i), 10000000L);
+        }
+    }
+
+    public void assertTapsBatched(int res, long taps[]) {
+        mockCsvSensor = new MockCsvSensor(getContext().getResources().openRawResource(res));
+        mockCsvSensor.replay(this.detector, 50);
+
+        assertEquals(taps.length, this.detectedTaps.size());
+        for (int i = 0; i < taps.length; i++) {
+            assertEquals(taps[i], this.detectedTaps.get(i), 10000000L);
+        }
+    }
+
+    /**
+     * Replay a recording with a linearly interpolated reading between every two readings
+     */
+    public void assertTapsDoubleRate(int res, long taps[]) {
+        mockCsvSensor = new MockCsvSensor(getContext().getResources().openRawResource(res));
+
+        MockCsvSensor.MockSensorEvent last = null;
+        MockCsvSensor.MockSensorEvent e = mockCsvSensor.nextSensorEvent();
+        while (null != e) {
+            if (Sensor.TYPE_LINEAR_ACCELERATION == e.type) {
+                if (null != last) {
+                    float values[] = new float[e.values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = (last.values[i] + e.values[i]) / 2;
+                    }
+                    this.detector.onSensorChanged((last.timestamp + e.timestamp) / 2, e.type, e.accuracy, values);
+                }
+                last = e;
+            }
             this.detector.onSensorChanged(e.timestamp, e.type, e.accuracy, e.values);
             e = mockCsvSensor.nextSensorEvent();
         }
@@ -99,8 +150,162 @@ public class TapDetectorTest extends AndroidTestCase implements TapDetector.TapO
                 });
     }
 
+    public void testFindBrokenSosFast() {
+        // The taps of the first S follow each other within 150 ms. The first tap of the last S
+        // peaks at a square sum of 44.8, just below MIN_TAP_SQUARE_SUM, and is not found.
+        assertTaps(R.raw.sample6_morse_sos_broken_fast,
+                new long[]{
+                        1419887327801953999L, 1419887327968220084L, 1419887328114246695L,
+                        1419887328814179664L, 1419887328985413795L, 1419887329156586891L,
+                        1419887330017609840L, 1419887330178742653L
+                });
+    }
+
+    public void testFindBrokenSosWalkingIgnoresFootsteps() {
+        assertTaps(R.raw.sample5_morse_sos_broken_walking,
+                new long[]{
+                        1419879046013948521L, 1419879046190169287L, 1419879046351302100L,
+                        1419879046910231543L, 1419879047076399756L, 1419879047247603369L,
+                        1419879047998146711L, 1419879048169472394L
+                });
+        assertTrue(this.detector.getThreshold() > TapDetector.MIN_TAP_SQUARE_SUM);
+    }
+
+    public void testNoiseFloorStaysLowWhenStale() {
+        assertTaps(R.raw.sample1_morse_sos_stale_nexus4,
+                new long[]{
+                        1418329997885521010L, 1418329998110679701L, 1418329998333421586L,
+                        1418329999103087206L, 1418329999799040575L, 1418330000472471972L,
+                        1418330001525212870L, 1418330001732183085L, 1418330001983373270L
+                });
+        assertTrue(this.detector.getNoiseFloor() > 0);
+        assertEquals((float) TapDetector.MIN_TAP_SQUARE_SUM, this.detector.getThreshold());
+    }
+
+    public void testFixedThresholdWithoutNoiseFactor() {
+        this.detector.setNoiseFactor(0);
+        assertTaps(R.raw.sample3_morse_sos_walking_nexus4,
+                new long[]{
+                        1418330668030524423L, 1418330668191626717L, 1418330668342780282L,
+                        1418330668997467886l, 1418330669431165460l, 1418330669889905694L,
+                        1418330670897071244l, 1418330671062232377l, 1418330671229194047L
+                });
+        assertEquals((float) TapDetector.MIN_TAP_SQUARE_SUM, this.detector.getThreshold());
+    }
+
+    public void testFindsSosPatternStaleBatched() {
+        assertTapsBatched(R.raw.sample1_morse_sos_stale_nexus4,
+                new long[]{
+                        1418329997885521010L, 1418329998110679701L, 1418329998333421586L,
+                        1418329999103087206L, 1418329999799040575L, 1418330000472471972L,
+                        1418330001525212870L, 1418330001732183085L, 1418330001983373270L
+                });
+    }
+
+    public void testFindBrokenSosBatched() {
+        assertTapsBatched(R.raw.sample4_morse_sos_broken,
+                new long[]{
+                        1419822855505798592l, 1419822855692077889l, 1419822855888458504l,
+                        1419822856673993187l,
+                        1419822857394055443l, 1419822857610577660l, 1419822857812024193l
+                });
+    }
+
+    public void testFindsSosPatternStaleDoubleRate() {
+        assertTapsDoubleRate(R.raw.sample1_morse_sos_stale_nexus4,
+                new long[]{
+                        1418329997885521010L, 1418329998110679701L, 1418329998333421586L,
+                        1418329999103087206L, 1418329999799040575L, 1418330000472471972L,
+                        1418330001525212870L, 1418330001732183085L, 1418330001983373270L
+                });
+    }
+
+    public void testFindsSosPatternWalkingDoubleRate() {
+        assertTapsDoubleRate(R.raw.sample3_morse_sos_walking_nexus4,
+                new long[]{
+                        1418330668030524423L, 1418330668191626717L, 1418330668342780282L,
+                        1418330668997467886l, 1418330669431165460l, 1418330669889905694L,
+                        1418330670897071244l, 1418330671062232377l, 1418330671229194047L
+                });
+    }
+
+    public void testSpeculativeTapsFindSosPatternStale() {
+        this.detector.setSpeculative(true);
+        assertTaps(R.raw.sample1_morse_sos_stale_nexus4,
+                new long[]{
+                        1418329997885521010L, 1418329998110679701L, 1418329998333421586L,
+                        1418329999103087206L, 1418329999799040575L, 1418330000472471972L,
+                        1418330001525212870L, 1418330001732183085L, 1418330001983373270L
+                });
+        assertTrue(this.maxTapLatency < this.detector.getPeakWindow());
+    }
+
+    public void testSpeculativeTapsFindsSosPatternWalking() {
+        this.detector.setSpeculative(true);
+        assertTaps(R.raw.sample3_morse_sos_walking_nexus4,
+                new long[]{
+                        1418330668030524423L, 1418330668191626717L, 1418330668342780282L,
+                        1418330668997467886l, 1418330669431165460l, 1418330669889905694L,
+                        1418330670897071244l, 1418330671062232377l, 1418330671229194047L
+                });
+        assertTrue(this.maxTapLatency < this.detector.getPeakWindow());
+    }
+
+    public void testNoAllocationsWhileReplaying() throws Exception {
+        // Read the whole recording up front, parsing allocates
+        ArrayList<MockCsvSensor.MockSensorEvent> events = new ArrayList<>();
+        mockCsvSensor = new MockCsvSensor(getContext().getResources().openRawResource(R.raw.sample1_morse_sos_stale_nexus4));
+        MockCsvSensor.MockSensorEvent e = mockCsvSensor.nextSensorEvent();
+        while (null != e) {
+            events.add(e);
+            e = mockCsvSensor.nextSensorEvent();
+        }
+        int count = events.size();
+        long timestamps[] = new long[count];
+        int types[] = new int[count];
+        int accuracies[] = new int[count];
+        float values[][] = new float[count][];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = events.get(i).timestamp;
+            types[i] = events.get(i).type;
+            accuracies[i] = events.get(i).accuracy;
+            values[i] = events.get(i).values;
+        }
+
+        final long taps[] = new long[16];
+        final int tapCount[] = new int[1];
+        TapDetector d = new TapDetector();
+        d.registerTapObserver(new TapDetector.TapObserver() {
+            @Override
+            public void onTap(long timestamp, long now, DeviceSide side) {
+                taps[tapCount[0]++] = timestamp;
+            }
+
+            @Override
+            public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+                tapCount[0]--;
+            }
+        });
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < count; i++) {
+            d.onSensorChanged(timestamps[i], types[i], accuracies[i], values[i]);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals(0, Debug.getThreadAllocCount());
+        assertEquals(9, tapCount[0]);
+    }
+
     @Override
     public void onTap(long timestamp, long now, DeviceSide side) {
         this.detectedTaps.add(timestamp);
+        this.maxTapLatency = Math.max(this.maxTapLatency, now - timestamp);
+    }
+
+    @Override
+    public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+        assertEquals(timestamp, (long) this.detectedTaps.remove(this.detectedTaps.size() - 1));
     }
 }
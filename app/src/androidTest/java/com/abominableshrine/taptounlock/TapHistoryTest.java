@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import junit.framework.TestCase;
+
+public class TapHistoryTest extends TestCase {
+
+    private TapHistory h;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        h = new TapHistory(4, 1000);
+    }
+
+    public void testEmptyHistory() {
+        assertEquals(0, h.size());
+        assertEquals(4, h.capacity());
+        assertFalse(h.remove(1));
+    }
+
+    public void testCapacityIsRoundedUp() {
+        assertEquals(8, new TapHistory(5, 1000).capacity());
+    }
+
+    public void testKeepsOrder() {
+        h.add(1, DeviceSide.LEFT);
+        h.add(2, DeviceSide.RIGHT);
+
+        assertEquals(2, h.size());
+        assertEquals(1, h.getTimestamp(0));
+        assertEquals(DeviceSide.LEFT, h.getSide(0));
+        assertEquals(2, h.getTimestamp(1));
+        assertEquals(DeviceSide.RIGHT, h.getSide(1));
+    }
+
+    public void testDropsOldestWhenFull() {
+        for (int i = 0; i < 6; i++) {
+            h.add(i, DeviceSide.BACK);
+        }
+
+        assertEquals(4, h.size());
+        assertEquals(2, h.getTimestamp(0));
+        assertEquals(5, h.getTimestamp(3));
+    }
+
+    public void testDropsTapsTooOld() {
+        h.add(0, DeviceSide.BACK);
+        h.add(500, DeviceSide.BACK);
+        h.add(1200, DeviceSide.BACK);
+
+        assertEquals(2, h.size());
+        assertEquals(500, h.getTimestamp(0));
+
+        h.evictOlderThan(1000);
+        assertEquals(1, h.size());
+        assertEquals(1200, h.getTimestamp(0));
+    }
+
+    public void testRemoveRecentTap() {
+        for (int i = 1; i <= 6; i++) {
+            h.add(i, DeviceSide.values()[i]);
+        }
+
+        assertTrue(h.remove(5));
+        assertEquals(3, h.size());
+        assertEquals(3, h.getTimestamp(0));
+        assertEquals(4, h.getTimestamp(1));
+        assertEquals(6, h.getTimestamp(2));
+        assertEquals(DeviceSide.values()[6], h.getSide(2));
+
+        h.add(7, DeviceSide.ANY);
+        assertEquals(4, h.size());
+        assertEquals(7, h.getTimestamp(3));
+    }
+
+    public void testIndexOfFindsWindow() {
+        TapHistory history = new TapHistory(8, 1000);
+        for (int i = 0; i < 11; i++) {
+            history.add(100 + 10 * i, DeviceSide.BACK);
+        }
+
+        // The oldest taps have been dropped, 130 to 200 are left
+        assertEquals(0, history.indexOf(0));
+        assertEquals(0, history.indexOf(130));
+        assertEquals(1, history.indexOf(131));
+        assertEquals(1, history.indexOf(140));
+        assertEquals(7, history.indexOf(200));
+        assertEquals(8, history.indexOf(201));
+        assertEquals(0, new TapHistory(4, 1000).indexOf(5));
+    }
+
+    public void testSeqsAreNeverReused() {
+        for (int i = 0; i < 6; i++) {
+            h.add(i, DeviceSide.BACK);
+        }
+        assertEquals(6, h.nextSeq());
+        assertEquals(2, h.getSeq(0));
+        assertEquals(5, h.getSeq(3));
+
+        assertTrue(h.remove(5));
+        h.add(6, DeviceSide.LEFT);
+        assertEquals(6, h.getSeq(3));
+        assertEquals(7, h.nextSeq());
+
+        h.clear();
+        h.add(7, DeviceSide.LEFT);
+        assertEquals(7, h.getSeq(0));
+    }
+
+    public void testIndexOfSeqFindsDelta() {
+        for (int i = 0; i < 6; i++) {
+            h.add(i, DeviceSide.BACK);
+        }
+        // Dropped taps are not found anymore
+        assertEquals(0, h.indexOfSeq(0));
+        assertEquals(0, h.indexOfSeq(2));
+        assertEquals(2, h.indexOfSeq(4));
+        assertEquals(4, h.indexOfSeq(6));
+
+        assertTrue(h.remove(3));
+        assertEquals(1, h.indexOfSeq(3));
+        assertEquals(4, h.getSeq(1));
+    }
+
+    public void testInvalidIndexThrows() {
+        h.add(1, DeviceSide.BACK);
+        try {
+            h.getTimestamp(1);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testWindowReadsHistory() {
+        h.add(10, DeviceSide.LEFT);
+        h.add(30, DeviceSide.RIGHT);
+        h.add(60, DeviceSide.BACK);
+        h.add(100, DeviceSide.FRONT);
+
+        TapHistory.Window w = new TapHistory.Window().set(h, 1, 3);
+        assertEquals(3, w.size());
+        assertEquals(70, w.duration());
+        assertEquals(DeviceSide.RIGHT, w.getSide(0));
+        assertEquals(0, w.getPause(0));
+        assertEquals(DeviceSide.FRONT, w.getSide(2));
+        assertEquals(40, w.getPause(2));
+
+        TapPattern p = new TapPattern().appendTap(DeviceSide.RIGHT, 0)
+                .appendTap(DeviceSide.BACK, 30)
+                .appendTap(DeviceSide.FRONT, 40);
+        assertTrue(p.matches(w));
+        assertEquals(p, new TapPattern(TapPattern.toBundle(w)));
+
+        assertEquals(0, w.set(h, 4, 0).size());
+        assertEquals(0, w.duration());
+    }
+
+    public void testInvalidWindowThrows() {
+        h.add(1, DeviceSide.BACK);
+        TapHistory.Window w = new TapHistory.Window();
+        try {
+            w.set(h, 0, 2);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            w.set(h, 0, 1).getSide(1);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+}
@@ -20,10 +20,12 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.test.ServiceTestCase;
 
@@ -102,6 +104,13 @@ public class TapPatternDetectorServiceTest extends ServiceTestCase<TapPatternDet
         assertEquals(0, this.deathRecipient.count);
     }
 
+    public void testLocalDetector() throws Exception {
+        this.setTapDetectorAndStartService();
+        assertNotNull(TapPatternDetectorService.getLocalDetector(this.binder));
+        assertNull(TapPatternDetectorService.getLocalDetector(new Binder()));
+        assertNull(TapPatternDetectorService.getLocalDetector(null));
+    }
+
     public void testCreateRecentTapRequestMsg() throws Exception {
         this.setTapDetectorAndStartService();
         Messenger m = new Messenger(new Handler());
@@ -124,6 +133,16 @@ public class TapPatternDetectorServiceTest extends ServiceTestCase<TapPatternDet
         assertNotNull(TapPatternDetectorService.createSubscribeMsg(m, new TapPattern().appendTap(DeviceSide.ANY, 0)));
     }
 
+    public void testCreateUnsubscribeMsg() throws Exception {
+        this.setTapDetectorAndStartService();
+        Messenger m = new Messenger(new Handler());
+        assertNull(TapPatternDetectorService.createUnsubscribeMsg(null, null));
+        assertNull(TapPatternDetectorService.createUnsubscribeMsg(null, new TapPattern().appendTap(DeviceSide.ANY, 0)));
+        assertNull(TapPatternDetectorService.createUnsubscribeMsg(m, null));
+        assertNull(TapPatternDetectorService.createUnsubscribeMsg(m, new TapPattern()));
+        assertNotNull(TapPatternDetectorService.createUnsubscribeMsg(m, new TapPattern().appendTap(DeviceSide.ANY, 0)));
+    }
+
     public void testGetTapsForLastSecondsMessage() throws Exception {
         this.setTapDetectorAndStartService();
         final MessengerTestThread t = new MessengerTestThread();
@@ -276,4 +295,240 @@ public class TapPatternDetectorServiceTest extends ServiceTestCase<TapPatternDet
             }
         });
     }
+
+    public void testSamePatternFromTwoClients() throws Exception {
+        final TapPattern p = new TapPattern().appendTap(DeviceSide.BACK, 0);
+        MockTapDetector.pattern = p;
+        final MessengerTestThread t = new MessengerTestThread();
+        final int matches[] = new int[1];
+        final Handler.Callback callback = new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                assertNotNull(message);
+                assertEquals(TapPatternDetectorService.MSG_PUB_PATTERN_MATCH, message.what);
+                assertEquals(p, new TapPattern(message.getData()));
+                if (2 == ++matches[0]) {
+                    t.reportSuccess();
+                }
+                return false;
+            }
+        };
+        this.setTapDetectorAndStartService(MockTapDetector.class);
+
+        t.test(1000, new Runnable() {
+            @Override
+            public void run() {
+                // A second client on the same thread
+                Messenger other = new Messenger(new Handler(callback));
+                try {
+                    txMessenger.send(TapPatternDetectorService.createSubscribeMsg(t.messenger, p));
+                    txMessenger.send(TapPatternDetectorService.createSubscribeMsg(other, p));
+                    Thread.sleep(100);
+                    MockTapDetector.sendTaps();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    fail();
+                }
+            }
+        }, callback);
+        assertEquals(2, matches[0]);
+    }
+
+    public void testUnsubscribe() throws Exception {
+        final TapPattern unsubscribed = new TapPattern().appendTap(DeviceSide.BACK, 0);
+        final TapPattern subscribed = new TapPattern().appendTap(DeviceSide.ANY, 0);
+        MockTapDetector.pattern = unsubscribed;
+        final MessengerTestThread t = new MessengerTestThread();
+        this.setTapDetectorAndStartService(MockTapDetector.class);
+
+        t.test(1000, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    txMessenger.send(TapPatternDetectorService.createSubscribeMsg(t.messenger, unsubscribed));
+                    txMessenger.send(TapPatternDetectorService.createSubscribeMsg(t.messenger, subscribed));
+                    txMessenger.send(TapPatternDetectorService.createUnsubscribeMsg(t.messenger, unsubscribed));
+                    Thread.sleep(100);
+                    MockTapDetector.sendTaps();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    fail();
+                }
+            }
+        }, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                assertNotNull(message);
+                assertEquals(TapPatternDetectorService.MSG_PUB_PATTERN_MATCH, message.what);
+                assertEquals(subscribed, new TapPattern(message.getData()));
+                t.reportSuccess();
+                return false;
+            }
+        });
+    }
+
+    public void testDeadClientLosesSubscriptions() throws Exception {
+        final TapPattern p = new TapPattern().appendTap(DeviceSide.BACK, 0);
+        MockTapDetector.pattern = p;
+        final MessengerTestThread t = new MessengerTestThread();
+        final int deadMatches[] = new int[1];
+        this.setTapDetectorAndStartService(MockTapDetector.class);
+
+        t.test(1000, new Runnable() {
+            @Override
+            public void run() {
+                Messenger dead = new Messenger(new Handler(new Handler.Callback() {
+                    @Override
+                    public boolean handleMessage(Message message) {
+                        deadMatches[0]++;
+                        return false;
+                    }
+                }));
+                try {
+                    txMessenger.send(TapPatternDetectorService.createSubscribeMsg(dead, p));
+                    txMessenger.send(TapPatternDetectorService.createSubscribeMsg(t.messenger, p));
+                    Thread.sleep(100);
+                    TapPatternDetectorService.notifyClientDied(dead.getBinder());
+                    Thread.sleep(100);
+                    MockTapDetector.sendTaps();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    fail();
+                }
+            }
+        }, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                assertEquals(TapPatternDetectorService.MSG_PUB_PATTERN_MATCH, message.what);
+                // Give a match for the dead client time to arrive on this thread as well
+                new Handler().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        t.reportSuccess();
+                    }
+                }, 100);
+                return false;
+            }
+        });
+        assertEquals(0, deadMatches[0]);
+    }
+
+    public void testTapStream() throws Exception {
+        final TapPattern p = new TapPattern().appendTap(DeviceSide.LEFT, 0).appendTap(DeviceSide.RIGHT, 500000000);
+        MockTapDetector.pattern = p;
+        final MessengerTestThread t = new MessengerTestThread();
+        final int received[] = new int[1];
+        this.setTapDetectorAndStartService(MockTapDetector.class);
+
+        t.test(2000, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    txMessenger.send(TapPatternDetectorService.createTapsSubscribeMsg(t.messenger, 1));
+                    Thread.sleep(100);
+                    MockTapDetector.sendTaps();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    fail();
+                }
+            }
+        }, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                assertNotNull(message);
+                assertEquals(TapPatternDetectorService.MSG_PUB_TAPS, message.what);
+                TapStream.Batch b = new TapStream.Batch(message.getData());
+                // The window allows a single tap until it has been acknowledged
+                assertEquals(1, b.size());
+                assertFalse(b.retractions[0]);
+                assertEquals(p.getSide(received[0]), b.getSide(0));
+                if (2 == ++received[0]) {
+                    t.reportSuccess();
+                    return false;
+                }
+                try {
+                    txMessenger.send(TapPatternDetectorService.createTapsAckMsg(t.messenger, 1));
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                    fail();
+                }
+                return false;
+            }
+        });
+        assertEquals(2, received[0]);
+    }
+
+    public void testTapsSince() throws Exception {
+        final TapPattern p = new TapPattern().appendTap(DeviceSide.LEFT, 0).appendTap(DeviceSide.RIGHT, 500000000);
+        MockTapDetector.pattern = p;
+        final MessengerTestThread t = new MessengerTestThread();
+        final int responses[] = new int[1];
+        this.setTapDetectorAndStartService(MockTapDetector.class);
+
+        t.test(1000, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    MockTapDetector.sendTaps();
+                    Thread.sleep(100);
+                    txMessenger.send(TapPatternDetectorService.createTapsSinceRequestMsg(t.messenger, 0));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    fail();
+                }
+            }
+        }, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                assertNotNull(message);
+                assertEquals(TapPatternDetectorService.MSG_RESP_TAPS_SINCE, message.what);
+                TapStream.Batch b = new TapStream.Batch(message.getData());
+                long next = message.getData().getLong(TapPatternDetectorService.KEY_NEXT_SEQ);
+                if (1 == ++responses[0]) {
+                    assertEquals(0, message.getData().getLong(TapPatternDetectorService.KEY_FIRST_SEQ));
+                    assertEquals(2, next);
+                    assertEquals(2, b.size());
+                    assertEquals(p.getSide(0), b.getSide(0));
+                    assertEquals(p.getSide(1), b.getSide(1));
+                    assertEquals(p.getPause(1), b.timestamps[1] - b.timestamps[0]);
+                    try {
+                        // Nothing has been added since
+                        txMessenger.send(TapPatternDetectorService.createTapsSinceRequestMsg(t.messenger, next));
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                        fail();
+                    }
+                    return false;
+                }
+                assertEquals(0, b.size());
+                assertEquals(2, next);
+                t.reportSuccess();
+                return false;
+            }
+        });
+        assertEquals(2, responses[0]);
+    }
+
+    public void testSharedTaps() throws Exception {
+        final TapPattern p = new TapPattern().appendTap(DeviceSide.LEFT, 0).appendTap(DeviceSide.RIGHT, 500000000);
+        MockTapDetector.pattern = p;
+        this.setTapDetectorAndStartService(MockTapDetector.class);
+        ParcelFileDescriptor pfd = TapPatternDetectorService.getLocalDetector(this.binder).openSharedTaps();
+        assertNotNull(pfd);
+        SharedTapRing.Reader r = SharedTapRing.map(pfd);
+        pfd.close();
+
+        MockTapDetector.sendTaps();
+        long timestamps[] = new long[4];
+        DeviceSide sides[] = new DeviceSide[4];
+        boolean retractions[] = new boolean[4];
+        int n = 0;
+        for (int i = 0; i < 10 && n < 2; i++) {
+            Thread.sleep(100);
+            n += r.read(timestamps, sides, retractions);
+        }
+        assertEquals(2, n);
+        assertEquals(2, r.getCursor());
+    }
 }
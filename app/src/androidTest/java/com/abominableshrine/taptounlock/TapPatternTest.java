@@ -17,9 +17,12 @@
 package com.abominableshrine.taptounlock;
 
 import android.os.Bundle;
+import android.os.Parcel;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+
 public class TapPatternTest extends TestCase {
 
     private TapPattern p;
@@ -105,6 +108,134 @@ public class TapPatternTest extends TestCase {
         assertEquals(p, new TapPattern(b));
     }
 
+    public void testLongPausesBundleRoundTrip() {
+        p = p.withTap(DeviceSide.BACK, 0)
+                .withTap(DeviceSide.LEFT, 5000000000L)
+                .withTap(DeviceSide.RIGHT, 250000000L)
+                .withTap(DeviceSide.TOP, Long.MAX_VALUE / 4);
+        TapPattern p1 = new TapPattern(p.toBundle());
+        assertEquals(p, p1);
+        assertEquals(5000000000L, p1.getPause(1));
+        assertEquals(Long.MAX_VALUE / 4, p1.getPause(3));
+        assertEquals(p.duration(), p1.duration());
+    }
+
+    public void testParcelRoundTrip() {
+        p = p.withTap(DeviceSide.BACK, 0)
+                .withTap(DeviceSide.LEFT, 5000000000L)
+                .withTap(DeviceSide.ANY, 250000000L);
+        Parcel parcel = Parcel.obtain();
+        p.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        TapPattern p1 = TapPattern.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+        assertEquals(p, p1);
+        assertEquals(p.duration(), p1.duration());
+    }
+
+    public void testCopyOf() {
+        p = p.withTap(DeviceSide.BACK, 0)
+                .withTap(DeviceSide.LEFT, 5000000000L)
+                .withTap(DeviceSide.ANY, 250000000L);
+        TapPattern p1 = TapPattern.copyOf(p);
+        assertEquals(p, p1);
+        assertEquals(p.duration(), p1.duration());
+        assertEquals(new TapPattern(), TapPattern.copyOf(new TapPattern()));
+    }
+
+    public void testReadsLegacyBundle() {
+        fillComplexPattern(p);
+        Bundle b = new Bundle();
+        b.putIntArray("sides", new int[]{DeviceSide.FRONT.ordinal(), DeviceSide.TOP.ordinal(), DeviceSide.BOTTOM.ordinal()});
+        ArrayList<Integer> pauses = new ArrayList<>();
+        pauses.add(10);
+        pauses.add(10);
+        b.putIntegerArrayList("pauses", pauses);
+        assertEquals(p, new TapPattern(b));
+    }
+
+    public void testRejectsInvalidSideInBundle() {
+        p = p.withTap(DeviceSide.BACK, 0).withTap(DeviceSide.LEFT, 10);
+        byte taps[] = p.encode();
+        taps[2] = (byte) DeviceSide.values().length;
+        assertInvalidBundle(taps);
+        taps[2] = -1;
+        assertInvalidBundle(taps);
+    }
+
+    public void testRejectsZeroPauseInBundle() {
+        // Two taps on the back with a pause of 0 between them
+        assertInvalidBundle(new byte[]{2, 0, 0, 0});
+    }
+
+    public void testRejectsTruncatedBundle() {
+        assertInvalidBundle(new byte[]{3, 0, 0});
+    }
+
+    private void assertInvalidBundle(byte taps[]) {
+        Bundle b = new Bundle();
+        b.putByteArray("taps", taps);
+        try {
+            new TapPattern(b);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRejectsInvalidLegacyBundle() {
+        ArrayList<Integer> pauses = new ArrayList<>();
+        pauses.add(10);
+        assertInvalidLegacyBundle(new int[]{DeviceSide.FRONT.ordinal(), DeviceSide.values().length}, pauses);
+        pauses.set(0, -10);
+        assertInvalidLegacyBundle(new int[]{DeviceSide.FRONT.ordinal(), DeviceSide.TOP.ordinal()}, pauses);
+        assertInvalidLegacyBundle(new int[]{DeviceSide.FRONT.ordinal(), DeviceSide.TOP.ordinal()}, new ArrayList<Integer>());
+        assertInvalidLegacyBundle(null, pauses);
+    }
+
+    private void assertInvalidLegacyBundle(int sides[], ArrayList<Integer> pauses) {
+        Bundle b = new Bundle();
+        b.putIntArray("sides", sides);
+        b.putIntegerArrayList("pauses", pauses);
+        try {
+            new TapPattern(b);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRejectsInvalidParcel() {
+        assertInvalidParcel(2, new byte[]{0, (byte) DeviceSide.values().length}, 10);
+        assertInvalidParcel(2, new byte[]{0, 0}, 0);
+        assertInvalidParcel(3, new byte[]{0, 0}, 10);
+    }
+
+    private void assertInvalidParcel(int size, byte sides[], long pause) {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(size);
+        parcel.writeByteArray(sides);
+        parcel.writeLong(pause);
+        parcel.setDataPosition(0);
+        try {
+            TapPattern.CREATOR.createFromParcel(parcel);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testEncodingIsCompact() {
+        p = p.withTap(DeviceSide.BACK, 0);
+        for (int i = 0; i < 8; i++) {
+            p = p.withTap(DeviceSide.BACK, 250000000L + i);
+        }
+        // Size, 9 sides, the first pause in 5 bytes and the others in one each
+        assertEquals(1 + 9 + 5 + 7, p.encode().length);
+    }
+
     private TapPattern createTapPatternFromArray(long a[], DeviceSide side) {
         TapPattern ret = new TapPattern();
         ret.appendTap(side, 0);
@@ -117,6 +248,49 @@ public class TapPatternTest extends TestCase {
         return ret;
     }
 
+    public void testBuilderMatchesAppendTap() {
+        fillComplexPattern(p);
+        TapPattern built = new TapPattern.Builder(1)
+                .appendTap(DeviceSide.FRONT, 10)
+                .appendTap(DeviceSide.TOP, 10)
+                .appendTap(DeviceSide.BOTTOM, 10)
+                .build();
+        assertEquals(p, built);
+        assertEquals(p.hashCode(), built.hashCode());
+        assertEquals(20, built.duration());
+        assertEquals(p.toString(), built.toString());
+    }
+
+    public void testBuilderRejectsZeroPause() {
+        try {
+            new TapPattern.Builder().appendTap(DeviceSide.LEFT, 0).appendTap(DeviceSide.LEFT, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testBuilderReset() {
+        TapPattern.Builder b = new TapPattern.Builder();
+        TapPattern first = b.appendTap(DeviceSide.LEFT, 0).appendTap(DeviceSide.RIGHT, 5).build();
+        TapPattern second = b.reset().appendTap(DeviceSide.BACK, 0).build();
+        assertEquals(2, first.size());
+        assertEquals(5, first.duration());
+        assertEquals(new TapPattern().appendTap(DeviceSide.BACK, 0), second);
+        assertEquals(0, second.duration());
+    }
+
+    public void testHashCodeChangesOnAppend() {
+        fillComplexPattern(p);
+        int hash = p.hashCode();
+        TapPattern p1 = p.withTap(DeviceSide.LEFT, 10);
+        assertFalse(hash == p1.hashCode());
+        assertEquals(30, p1.duration());
+        assertEquals(hash, p.hashCode());
+        assertEquals(3, p.size());
+        assertEquals(20, p.duration());
+    }
+
     public void testEmptyPatternMatch() {
         assertTrue(new TapPattern().matches(new TapPattern()));
     }
@@ -165,4 +339,31 @@ public class TapPatternTest extends TestCase {
         assertFalse(reference.matches(this.createTapPatternFromArray(new long[]{171203613L, 584375129L, 40283203L, 125885010L, 171325683L, 281860352L, 45349121L, 171277161L}, DeviceSide.BACK)));
         assertFalse(reference.matches(this.createTapPatternFromArray(new long[]{166266085L, 146026611L, 699932969L, 171234131L, 171173096L, 704925537L, 156097412L, 161132813L}, DeviceSide.BACK)));
     }
+
+    public void testScaledPatternMatch() {
+        long reference[] = {200000000L, 200000000L, 600000000L, 200000000L};
+        TapPattern p = this.createTapPatternFromArray(reference, DeviceSide.BACK);
+        for (int percent = 75; percent <= 125; percent += 5) {
+            long scaled[] = new long[reference.length];
+            for (int i = 0; i < scaled.length; i++) {
+                scaled[i] = reference[i] * percent / 100;
+            }
+            assertTrue(p.matches(this.createTapPatternFromArray(scaled, DeviceSide.BACK)));
+        }
+        assertFalse(p.matches(this.createTapPatternFromArray(new long[]{130000000L, 130000000L, 390000000L, 130000000L}, DeviceSide.BACK)));
+        assertFalse(p.matches(this.createTapPatternFromArray(new long[]{270000000L, 270000000L, 810000000L, 270000000L}, DeviceSide.BACK)));
+        // A single pause off by more than the tolerance
+        assertTrue(p.matches(this.createTapPatternFromArray(new long[]{200000000L, 235000000L, 600000000L, 200000000L}, DeviceSide.BACK)));
+        assertFalse(p.matches(this.createTapPatternFromArray(new long[]{200000000L, 260000000L, 600000000L, 200000000L}, DeviceSide.BACK)));
+    }
+
+    public void testLongPatternMatch() {
+        TapPattern p = new TapPattern.Builder().appendTap(DeviceSide.BACK, 0)
+                .appendTap(DeviceSide.BACK, Long.MAX_VALUE / 8).appendTap(DeviceSide.BACK, Long.MAX_VALUE / 8).build();
+        assertTrue(p.matches(p));
+        assertTrue(p.matches(new TapPattern.Builder().appendTap(DeviceSide.BACK, 0)
+                .appendTap(DeviceSide.BACK, Long.MAX_VALUE / 9).appendTap(DeviceSide.BACK, Long.MAX_VALUE / 9).build()));
+        assertFalse(p.matches(new TapPattern.Builder().appendTap(DeviceSide.BACK, 0)
+                .appendTap(DeviceSide.BACK, Long.MAX_VALUE / 8).appendTap(DeviceSide.BACK, Long.MAX_VALUE / 16).build()));
+    }
 }
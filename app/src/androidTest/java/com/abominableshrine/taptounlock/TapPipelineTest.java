@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.test.AndroidTestCase;
+
+import com.abominableshrine.taptounlock.mocks.MockCsvSensor;
+
+import java.util.ArrayList;
+
+public class TapPipelineTest extends AndroidTestCase implements ITapDetector.TapObserver {
+
+    private ArrayList<Long> detectedTaps;
+    private ArrayList<DeviceSide> detectedSides;
+    private MockCsvSensor mockCsvSensor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.detectedTaps = new ArrayList<>();
+        this.detectedSides = new ArrayList<>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.mockCsvSensor != null) {
+            this.mockCsvSensor.close();
+        }
+
+        super.tearDown();
+    }
+
+    private void replay(TapPipeline pipeline, int res) {
+        pipeline.registerTapObserver(this);
+        mockCsvSensor = new MockCsvSensor(getContext().getResources().openRawResource(res));
+        MockCsvSensor.MockSensorEvent e = mockCsvSensor.nextSensorEvent();
+        while (null != e) {
+            pipeline.onSensorChanged(e.timestamp, e.type, e.accuracy, e.values);
+            e = mockCsvSensor.nextSensorEvent();
+        }
+    }
+
+    public void testStagesFindSosPattern() {
+        replay(new TapPipeline(new MagnitudeStage(),
+                        new NoiseFloorStage(TapDetector.MIN_TAP_SQUARE_SUM, 0, TapDetector.DEFAULT_NOISE_SMOOTHING),
+                        new PeakStage(TapDetector.DEFAULT_PEAK_WINDOW)),
+                R.raw.sample1_morse_sos_stale_nexus4);
+
+        long taps[] = {
+                1418329997885521010L, 1418329998110679701L, 1418329998333421586L,
+                1418329999103087206L, 1418329999799040575L, 1418330000472471972L,
+                1418330001525212870L, 1418330001732183085L, 1418330001983373270L
+        };
+        assertEquals(taps.length, this.detectedTaps.size());
+        for (int i = 0; i < taps.length; i++) {
+            assertEquals(taps[i], this.detectedTaps.get(i), 10000000L);
+        }
+    }
+
+    public void testRefractoryStageDropsCloseTaps() {
+        // Only taps at least 300ms apart are left of the S of the SOS
+        replay(new TapPipeline(new MagnitudeStage(),
+                        new NoiseFloorStage(TapDetector.MIN_TAP_SQUARE_SUM, 0, TapDetector.DEFAULT_NOISE_SMOOTHING),
+                        new PeakStage(TapDetector.DEFAULT_PEAK_WINDOW),
+                        new RefractoryStage(300000000L)),
+                R.raw.sample1_morse_sos_stale_nexus4);
+
+        long taps[] = {
+                1418329997885521010L, 1418329998333421586L,
+                1418329999103087206L, 1418329999799040575L, 1418330000472471972L,
+                1418330001525212870L, 1418330001983373270L
+        };
+        assertEquals(taps.length, this.detectedTaps.size());
+        for (int i = 0; i < taps.length; i++) {
+            assertEquals(taps[i], this.detectedTaps.get(i), 10000000L);
+        }
+    }
+
+    public void testRefractoryStageForgetsRetractedTaps() {
+        RefractoryStage stage = new RefractoryStage(100);
+        TapPipeline pipeline = new TapPipeline(stage);
+        pipeline.registerTapObserver(this);
+
+        TapFrame frame = new TapFrame();
+        frame.side = DeviceSide.ANY;
+        frame.kind = TapFrame.TAP;
+        frame.timestamp = 1000;
+        stage.process(frame);
+        frame.kind = TapFrame.RETRACTION;
+        stage.process(frame);
+        frame.kind = TapFrame.TAP;
+        frame.timestamp = 1050;
+        stage.process(frame);
+        frame.timestamp = 1100;
+        stage.process(frame);
+
+        assertEquals(1, this.detectedTaps.size());
+        assertEquals(1050L, (long) this.detectedTaps.get(0));
+    }
+
+    private static void read(PeakStage stage, TapFrame frame, long timestamp, float magnitude) {
+        frame.kind = TapFrame.READING;
+        frame.timestamp = timestamp;
+        frame.magnitude = magnitude;
+        frame.threshold = 1f;
+        stage.process(frame);
+    }
+
+    public void testPeakStageReportsPeakBeforeGap() {
+        PeakStage stage = new PeakStage(100);
+        TapPipeline pipeline = new TapPipeline(stage);
+        pipeline.registerTapObserver(this);
+
+        TapFrame frame = new TapFrame();
+        read(stage, frame, 1000, 0.5f);
+        read(stage, frame, 1010, 5f);
+        read(stage, frame, 1020, 0.5f);
+        // Batched readings may arrive long after the last ones, the next one is even larger
+        read(stage, frame, 5000, 8f);
+        assertEquals(1, this.detectedTaps.size());
+        assertEquals(1010L, (long) this.detectedTaps.get(0));
+
+        read(stage, frame, 5010, 0.5f);
+        read(stage, frame, 5200, 0.5f);
+        assertEquals(2, this.detectedTaps.size());
+        assertEquals(5000L, (long) this.detectedTaps.get(1));
+    }
+
+    public void testPeakStageReportsFirstOfEqualPeaks() {
+        PeakStage stage = new PeakStage(100);
+        TapPipeline pipeline = new TapPipeline(stage);
+        pipeline.registerTapObserver(this);
+
+        TapFrame frame = new TapFrame();
+        read(stage, frame, 1000, 0.5f);
+        read(stage, frame, 1010, 5f);
+        read(stage, frame, 1050, 5f);
+        read(stage, frame, 1060, 0.5f);
+        read(stage, frame, 1300, 0.5f);
+        assertEquals(1, this.detectedTaps.size());
+        assertEquals(1010L, (long) this.detectedTaps.get(0));
+    }
+
+    public void testSpeculativePeakStageKeepsFirstOfEqualPeaks() {
+        PeakStage stage = new PeakStage(100);
+        stage.setSpeculative(true);
+        TapPipeline pipeline = new TapPipeline(stage);
+        pipeline.registerTapObserver(this);
+
+        TapFrame frame = new TapFrame();
+        read(stage, frame, 1000, 0.5f);
+        read(stage, frame, 1010, 5f);
+        read(stage, frame, 1020, 5f);
+        read(stage, frame, 1030, 0.5f);
+        read(stage, frame, 1300, 0.5f);
+        assertEquals(1, this.detectedTaps.size());
+        assertEquals(1010L, (long) this.detectedTaps.get(0));
+    }
+
+    public void testPeakStageRejectsWindowExceedingBuffer() {
+        PeakStage stage = new PeakStage(TapDetector.DEFAULT_PEAK_WINDOW);
+        try {
+            stage.setPeakWindow(1000000000L);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(TapDetector.DEFAULT_PEAK_WINDOW, stage.getPeakWindow());
+        assertEquals(1000000000L, new PeakStage(1000000000L).getPeakWindow());
+    }
+
+    public void testSideStageUsesDominantAxis() {
+        SideStage stage = new SideStage(0.5f);
+        TapPipeline pipeline = new TapPipeline(stage);
+        pipeline.registerTapObserver(this);
+
+        TapFrame frame = new TapFrame();
+        frame.kind = TapFrame.TAP;
+        float axes[][] = {{0.5f, 1f, -9f}, {0.5f, 1f, 9f}, {-7f, 1f, 1f}, {1f, 7f, 1f}, {5f, 5f, 5f}};
+        for (float a[] : axes) {
+            System.arraycopy(a, 0, frame.axes, 0, a.length);
+            stage.process(frame);
+        }
+
+        assertEquals(DeviceSide.FRONT, this.detectedSides.get(0));
+        assertEquals(DeviceSide.BACK, this.detectedSides.get(1));
+        assertEquals(DeviceSide.RIGHT, this.detectedSides.get(2));
+        assertEquals(DeviceSide.BOTTOM, this.detectedSides.get(3));
+        assertEquals(DeviceSide.ANY, this.detectedSides.get(4));
+    }
+
+    public void testLowPassStageSmoothsReadings() {
+        LowPassStage stage = new LowPassStage(0.5f);
+        final float last[] = new float[SampleRingBuffer.AXES];
+        stage.setNext(new TapStage() {
+            @Override
+            public void process(TapFrame frame) {
+                System.arraycopy(frame.axes, 0, last, 0, last.length);
+            }
+        });
+
+        TapFrame frame = new TapFrame();
+        frame.kind = TapFrame.READING;
+        frame.axes[0] = 2f;
+        stage.process(frame);
+        assertEquals(2f, last[0]);
+        frame.axes[0] = 4f;
+        stage.process(frame);
+        assertEquals(3f, last[0]);
+    }
+
+    @Override
+    public void onTap(long timestamp, long now, DeviceSide side) {
+        this.detectedTaps.add(timestamp);
+        this.detectedSides.add(side);
+    }
+
+    @Override
+    public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+        assertEquals(timestamp, (long) this.detectedTaps.remove(this.detectedTaps.size() - 1));
+        this.detectedSides.remove(this.detectedSides.size() - 1);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import junit.framework.TestCase;
+
+public class TapQueueTest extends TestCase {
+
+    private TapQueue q;
+    private TapQueue.Tap tap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        q = new TapQueue(4);
+        tap = new TapQueue.Tap();
+    }
+
+    public void testEmptyQueue() {
+        assertTrue(q.isEmpty());
+        assertFalse(q.poll(tap));
+    }
+
+    public void testFifoOrder() {
+        assertTrue(q.offer(1, 10, DeviceSide.LEFT));
+        assertTrue(q.offer(2, 20, DeviceSide.RIGHT));
+        assertFalse(q.isEmpty());
+
+        assertTrue(q.poll(tap));
+        assertEquals(1, tap.timestamp);
+        assertEquals(10, tap.now);
+        assertEquals(DeviceSide.LEFT, tap.side);
+        assertTrue(q.poll(tap));
+        assertEquals(2, tap.timestamp);
+        assertEquals(20, tap.now);
+        assertEquals(DeviceSide.RIGHT, tap.side);
+        assertFalse(q.poll(tap));
+    }
+
+    public void testRejectsWhenFull() {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(q.offer(i, i, DeviceSide.ANY));
+        }
+        assertFalse(q.offer(4, 4, DeviceSide.ANY));
+
+        assertTrue(q.poll(tap));
+        assertEquals(0, tap.timestamp);
+        assertTrue(q.offer(4, 4, DeviceSide.ANY));
+    }
+
+    public void testHandsOverBetweenThreads() throws Exception {
+        final int count = 100000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; i < count; i++) {
+                    while (!q.offer(i, i, DeviceSide.BACK)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        for (long expected = 0; expected < count; ) {
+            if (q.poll(tap)) {
+                assertEquals(expected, tap.timestamp);
+                expected++;
+            }
+        }
+        producer.join();
+        assertTrue(q.isEmpty());
+    }
+}
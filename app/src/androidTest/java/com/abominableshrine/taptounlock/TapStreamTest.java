@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import junit.framework.TestCase;
+
+public class TapStreamTest extends TestCase {
+
+    private TapStream s;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        s = new TapStream(3);
+    }
+
+    public void testInvalidWindowThrows() {
+        try {
+            new TapStream(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testEmptyStream() {
+        assertNull(s.poll());
+    }
+
+    public void testBatchesWaitingTaps() {
+        s.offer(1, DeviceSide.LEFT, false);
+        s.offer(2, DeviceSide.RIGHT, true);
+
+        TapStream.Batch b = s.poll();
+        assertEquals(2, b.size());
+        assertEquals(1, b.timestamps[0]);
+        assertEquals(DeviceSide.LEFT, b.getSide(0));
+        assertFalse(b.retractions[0]);
+        assertEquals(2, b.timestamps[1]);
+        assertEquals(DeviceSide.RIGHT, b.getSide(1));
+        assertTrue(b.retractions[1]);
+        assertEquals(2, s.getInFlight());
+        assertEquals(0, s.getPendingCount());
+        assertNull(s.poll());
+    }
+
+    public void testWaitsForCredit() {
+        for (int i = 0; i < 3; i++) {
+            s.offer(i, DeviceSide.ANY, false);
+        }
+        assertEquals(3, s.poll().size());
+
+        s.offer(3, DeviceSide.ANY, false);
+        s.offer(4, DeviceSide.ANY, false);
+        assertNull(s.poll());
+        assertEquals(2, s.getPendingCount());
+
+        s.ack(1);
+        TapStream.Batch b = s.poll();
+        assertEquals(1, b.size());
+        assertEquals(3, b.timestamps[0]);
+        assertNull(s.poll());
+
+        s.ack(3);
+        assertEquals(4, s.poll().timestamps[0]);
+        assertEquals(1, s.getInFlight());
+    }
+
+    public void testDropsOldestWhenBehind() {
+        for (int i = 0; i < 3; i++) {
+            s.offer(i, DeviceSide.ANY, false);
+        }
+        s.poll();
+        for (int i = 3; i < 8; i++) {
+            s.offer(i, DeviceSide.ANY, false);
+        }
+        assertEquals(3, s.getPendingCount());
+        assertEquals(2, s.getDroppedCount());
+
+        s.ack(3);
+        TapStream.Batch b = s.poll();
+        assertEquals(3, b.size());
+        assertEquals(5, b.timestamps[0]);
+        assertEquals(6, b.timestamps[1]);
+        assertEquals(7, b.timestamps[2]);
+    }
+
+    public void testIgnoresExcessAck() {
+        s.offer(1, DeviceSide.ANY, false);
+        s.poll();
+        s.ack(5);
+        assertEquals(0, s.getInFlight());
+        s.ack(-1);
+        assertEquals(0, s.getInFlight());
+    }
+
+    public void testBundleRoundTrip() {
+        s.offer(1, DeviceSide.TOP, false);
+        s.offer(2, DeviceSide.BOTTOM, true);
+        TapStream.Batch b = s.poll();
+
+        TapStream.Batch copy = new TapStream.Batch(b.toBundle());
+        assertEquals(b.size(), copy.size());
+        for (int i = 0; i < b.size(); i++) {
+            assertEquals(b.timestamps[i], copy.timestamps[i]);
+            assertEquals(b.getSide(i), copy.getSide(i));
+            assertEquals(b.retractions[i], copy.retractions[i]);
+        }
+    }
+}
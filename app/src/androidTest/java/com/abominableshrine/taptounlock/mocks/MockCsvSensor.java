@@ -16,6 +16,8 @@
 
 package com.abominableshrine.taptounlock.mocks;
 
+import com.abominableshrine.taptounlock.ITapDetector;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -24,12 +26,21 @@ import java.util.Scanner;
 public class MockCsvSensor implements Closeable {
 
     private Scanner scanner;
+    /**
+     * Event that has been read but did not fit into the last batch
+     */
+    private MockSensorEvent pending;
 
     public MockCsvSensor(InputStream input) {
         this.scanner = new Scanner(input);
     }
 
     public MockSensorEvent nextSensorEvent() {
+        if (null != this.pending) {
+            MockSensorEvent e = this.pending;
+            this.pending = null;
+            return e;
+        }
         while (scanner.hasNextLine()) {
             MockSensorEvent e = this.parseLine(this.scanner.nextLine());
 
@@ -40,6 +51,55 @@ public class MockCsvSensor implements Closeable {
         return null;
     }
 
+    /**
+     * Read the next consecutive events of the same sensor into a batch
+     * <p/>
+     * The batch ends when it is full or the sensor type, accuracy or number of values changes.
+     *
+     * @param batch The batch to fill, its previous contents will be overwritten
+     * @return {@code true} if at least one event has been read, {@code false} at the end of the
+     * recording
+     */
+    public boolean nextSensorBatch(MockSensorBatch batch) {
+        batch.count = 0;
+        MockSensorEvent e = this.nextSensorEvent();
+        if (null == e) {
+            return false;
+        }
+        batch.type = e.type;
+        batch.accuracy = e.accuracy;
+        batch.valuesPerSample = e.values.length;
+        if (batch.values.length < batch.timestamps.length * batch.valuesPerSample) {
+            batch.values = new float[batch.timestamps.length * batch.valuesPerSample];
+        }
+
+        while (null != e) {
+            boolean sameSensor = e.type == batch.type && e.accuracy == batch.accuracy && e.values.length == batch.valuesPerSample;
+            if (!sameSensor || batch.count == batch.timestamps.length) {
+                this.pending = e;
+                break;
+            }
+            batch.timestamps[batch.count] = e.timestamp;
+            System.arraycopy(e.values, 0, batch.values, batch.count * batch.valuesPerSample, batch.valuesPerSample);
+            batch.count++;
+            e = this.nextSensorEvent();
+        }
+        return true;
+    }
+
+    /**
+     * Feed the rest of the recording to a detector in batches
+     *
+     * @param detector  The detector to feed
+     * @param batchSize The maximum number of events per batch
+     */
+    public void replay(ITapDetector detector, int batchSize) {
+        MockSensorBatch batch = new MockSensorBatch(batchSize);
+        while (this.nextSensorBatch(batch)) {
+            detector.onSensorBatch(batch.type, batch.accuracy, batch.timestamps, batch.values, batch.valuesPerSample, 0, batch.count);
+        }
+    }
+
     private MockSensorEvent parseLine(String s) {
         if (null == s) {
             return null;
@@ -72,4 +132,22 @@ public class MockCsvSensor implements Closeable {
         public long timestamp;
         public int accuracy;
     }
+
+    /**
+     * Consecutive events of one sensor in the layout of
+     * {@link ITapDetector#onSensorBatch(int, int, long[], float[], int, int, int)}
+     */
+    public static class MockSensorBatch {
+        public int type;
+        public int accuracy;
+        public int valuesPerSample;
+        public int count;
+        public long timestamps[];
+        public float values[];
+
+        public MockSensorBatch(int capacity) {
+            this.timestamps = new long[capacity];
+            this.values = new float[0];
+        }
+    }
 }
@@ -71,4 +71,32 @@ public class MockCsvSensorTest extends AndroidTestCase {
         assertEquals(3, lastEvent.accuracy);
         assertArrayEquals(new float[]{0.337076f, 0.044595f, 0.356493f}, lastEvent.values);
     }
+
+    public void testCanReadSensorBatches() {
+        MockCsvSensor.MockSensorBatch batch = new MockCsvSensor.MockSensorBatch(100);
+        int count = 0;
+        int batches = 0;
+        long lastTimestamp = 0;
+        float lastValue = 0f;
+
+        while (this.mockCsvSensor.nextSensorBatch(batch)) {
+            if (0 == batches) {
+                assertEquals(1419822855062608543L, batch.timestamps[0]);
+                assertEquals(10, batch.type);
+                assertEquals(3, batch.accuracy);
+                assertEquals(3, batch.valuesPerSample);
+                assertEquals(-0.042596f, batch.values[0]);
+                assertEquals(-0.053983f, batch.values[2]);
+            }
+            count += batch.count;
+            batches++;
+            lastTimestamp = batch.timestamps[batch.count - 1];
+            lastValue = batch.values[batch.count * 3 - 1];
+        }
+
+        assertEquals(672, count);
+        assertEquals(7, batches);
+        assertEquals(1419822858441626371L, lastTimestamp);
+        assertEquals(0.356493f, lastValue);
+    }
 }
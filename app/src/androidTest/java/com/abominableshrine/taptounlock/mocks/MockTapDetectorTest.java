@@ -55,6 +55,11 @@ public class MockTapDetectorTest extends TestCase implements ITapDetector.TapObs
         this.nows.add(now);
     }
 
+    @Override
+    public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+        fail("MockTapDetector never retracts taps");
+    }
+
     public void testNoTapPatternSet() {
         this.detector.registerTapObserver(this);
 
@@ -110,4 +115,28 @@ public class MockTapDetectorTest extends TestCase implements ITapDetector.TapObs
         assertEquals(MockTapDetectorTest.secondsToNanos(1), this.nows.get(0).longValue());
         assertEquals(side, this.sides.get(0));
     }
+
+    public void testObserverCanRemoveItselfWhileNotified() {
+        MockTapDetector.pattern = new TapPattern().appendTap(DeviceSide.BACK, 0)
+                .appendTap(DeviceSide.BACK, 1).appendTap(DeviceSide.BACK, 1);
+        MockTapDetector.isAsync = true;
+        final int calls[] = new int[1];
+        this.detector.registerTapObserver(new ITapDetector.TapObserver() {
+            @Override
+            public void onTap(long timestamp, long now, DeviceSide side) {
+                calls[0]++;
+                detector.removeTapObserver(this);
+            }
+
+            @Override
+            public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+            }
+        });
+        this.detector.registerTapObserver(this);
+
+        MockTapDetector.sendTaps();
+
+        assertEquals(1, calls[0]);
+        assertEquals(3, this.timestamps.size());
+    }
 }
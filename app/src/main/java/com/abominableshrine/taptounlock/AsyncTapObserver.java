@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.os.Handler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes taps on to another observer on the thread of a {@link Handler}
+ * <p/>
+ * Taps are put in a bounded {@link TapQueue} on the detector thread and delivered to the wrapped
+ * observer on the handler thread, so a slow observer never stalls the sensor callbacks. If the
+ * observer falls behind so far that the queue is full, taps are dropped and counted, see
+ * {@link #getDroppedCount()}.
+ * <p/>
+ * Register the wrapper instead of the observer itself:
+ * <p/>
+ * {@code detector.registerTapObserver(new AsyncTapObserver(observer, handler, 64))}
+ */
+public class AsyncTapObserver implements ITapDetector.TapObserver {
+
+    private final ITapDetector.TapObserver observer;
+    private final Handler handler;
+    private final TapQueue queue;
+    /**
+     * Only used on the handler thread
+     */
+    private final TapQueue.Tap polled;
+    /**
+     * Set while {@link #drain} has been posted but not yet started
+     */
+    private final AtomicBoolean drainScheduled;
+    private final AtomicLong dropped;
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            while (queue.poll(polled)) {
+                if (polled.retraction) {
+                    observer.onTapRetracted(polled.timestamp, polled.now, polled.side);
+                } else {
+                    observer.onTap(polled.timestamp, polled.now, polled.side);
+                }
+            }
+        }
+    };
+
+    /**
+     * Create a new asynchronous observer
+     *
+     * @param observer The observer to pass taps on to
+     * @param handler  The handler of the thread to call the observer on
+     * @param capacity The number of taps that can wait for the observer
+     */
+    public AsyncTapObserver(ITapDetector.TapObserver observer, Handler handler, int capacity) {
+        if (null == observer || null == handler) {
+            throw new IllegalArgumentException("observer and handler must not be null");
+        }
+        this.observer = observer;
+        this.handler = handler;
+        this.queue = new TapQueue(capacity);
+        this.polled = new TapQueue.Tap();
+        this.drainScheduled = new AtomicBoolean();
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Get the observer taps are passed on to
+     *
+     * @return The observer
+     */
+    public ITapDetector.TapObserver getObserver() {
+        return this.observer;
+    }
+
+    /**
+     * Get the number of taps and retractions dropped because the queue was full
+     *
+     * @return The number of dropped events
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Queue the tap for the handler thread. Must only be called from the detector thread.
+     */
+    @Override
+    public void onTap(long timestamp, long now, DeviceSide side) {
+        this.enqueue(timestamp, now, side, false);
+    }
+
+    /**
+     * Queue the retraction for the handler thread. Must only be called from the detector thread.
+     */
+    @Override
+    public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+        this.enqueue(timestamp, now, side, true);
+    }
+
+    private void enqueue(long timestamp, long now, DeviceSide side, boolean retraction) {
+        if (!this.queue.offer(timestamp, now, side, retraction)) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+        if (this.drainScheduled.compareAndSet(false, true)) {
+            this.handler.post(this.drain);
+        }
+    }
+}
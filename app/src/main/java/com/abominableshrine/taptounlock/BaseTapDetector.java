@@ -18,8 +18,7 @@ package com.abominableshrine.taptounlock;
 
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-
-import java.util.ArrayList;
+import android.os.Handler;
 
 /**
  * Abstract TapDetector that takes care of observer house-keeping
@@ -27,18 +26,78 @@ import java.util.ArrayList;
  * TapDetection itself is not implemented, but it provides a convenient
  * {@link #notifyObservers(long, long, DeviceSide)}
  * method.
+ * <p/>
+ * When the sensors report in batches, see {@link #setMaxReportLatency(int)}, subclasses can call
+ * {@link #enableBatching(android.os.Handler, int)} and readings will be collected and passed to
+ * {@link #onSensorBatch(int, int, long[], float[], int, int, int)} once a batch has been delivered.
+ * <p/>
+ * Observers can be registered and removed from any thread while taps are being reported. They are
+ * kept in an array that is replaced on every change, so reporting a tap works on a snapshot without
+ * locking or allocating. Observers that take long should be wrapped in an {@link AsyncTapObserver}.
  */
 public abstract class BaseTapDetector implements ITapDetector {
 
-    private ArrayList<TapDetector.TapObserver> observers;
+    private static final TapDetector.TapObserver NO_OBSERVERS[] = new TapDetector.TapObserver[0];
+
+    /**
+     * The registered observers. Never modified, changes replace the array.
+     */
+    private volatile TapDetector.TapObserver observers[];
+    private final Object observersLock = new Object();
+    /**
+     * Buffer to pass single readings of a batch to {@link #onSensorChanged(long, int, int, float[])}
+     */
+    private float batchValues[];
+    /**
+     * The maximum time in microseconds readings may be held in the sensor FIFO
+     */
+    private int maxReportLatencyUs;
+    /**
+     * Handler of the thread sensor events are delivered on, {@code null} if not batching
+     */
+    private Handler batchHandler;
+    private long stagedTimestamps[];
+    private float stagedValues[];
+    private int stagedCount;
+    private int stagedType;
+    private int stagedAccuracy;
+    private int stagedValuesPerSample;
+    private final Runnable flushStaged = new Runnable() {
+        @Override
+        public void run() {
+            flushStagedReadings();
+        }
+    };
 
     public BaseTapDetector() {
-        this.observers = new ArrayList<>();
+        this.observers = NO_OBSERVERS;
+        this.maxReportLatencyUs = 0;
     }
 
     @Override
     public void onSensorChanged(SensorEvent e) {
-        this.onSensorChanged(e.timestamp, e.sensor.getType(), e.accuracy, e.values);
+        if (null == this.batchHandler) {
+            this.onSensorChanged(e.timestamp, e.sensor.getType(), e.accuracy, e.values);
+            return;
+        }
+
+        int type = e.sensor.getType();
+        int valuesPerSample = Math.min(e.values.length, SampleRingBuffer.AXES);
+        boolean sameSensor = type == this.stagedType && e.accuracy == this.stagedAccuracy && valuesPerSample == this.stagedValuesPerSample;
+        if (this.stagedCount > 0 && (!sameSensor || this.stagedCount == this.stagedTimestamps.length)) {
+            this.flushStagedReadings();
+        }
+        if (0 == this.stagedCount) {
+            this.stagedType = type;
+            this.stagedAccuracy = e.accuracy;
+            this.stagedValuesPerSample = valuesPerSample;
+            // The sensor framework delivers all readings it has received in one go before the
+            // looper gets to its message queue, so this runs once the batch has been delivered
+            this.batchHandler.post(this.flushStaged);
+        }
+        this.stagedTimestamps[this.stagedCount] = e.timestamp;
+        System.arraycopy(e.values, 0, this.stagedValues, this.stagedCount * valuesPerSample, valuesPerSample);
+        this.stagedCount++;
     }
 
     @Override
@@ -46,6 +105,75 @@ public abstract class BaseTapDetector implements ITapDetector {
         this.onAccuracyChanged(sensor.getType(), i);
     }
 
+    /**
+     * Feeds each reading of the batch to {@link #onSensorChanged(long, int, int, float[])}
+     * <p/>
+     * Detectors that can process a block of readings in one go should override this.
+     */
+    @Override
+    public void onSensorBatch(int sensorType, int accuracy, long timestamps[], float values[], int valuesPerSample, int offset, int count) {
+        if (null == this.batchValues || this.batchValues.length != valuesPerSample) {
+            this.batchValues = new float[valuesPerSample];
+        }
+        for (int i = offset; i < offset + count; i++) {
+            System.arraycopy(values, i * valuesPerSample, this.batchValues, 0, valuesPerSample);
+            this.onSensorChanged(timestamps[i], sensorType, accuracy, this.batchValues);
+        }
+    }
+
+    @Override
+    public void setMaxReportLatency(int maxReportLatencyUs) {
+        if (maxReportLatencyUs < 0) {
+            throw new IllegalArgumentException("maxReportLatencyUs: " + maxReportLatencyUs);
+        }
+        this.maxReportLatencyUs = maxReportLatencyUs;
+    }
+
+    @Override
+    public int getMaxReportLatency() {
+        return this.maxReportLatencyUs;
+    }
+
+    /**
+     * Collect readings from {@link #onSensorChanged(android.hardware.SensorEvent)} and pass them
+     * on in batches
+     * <p/>
+     * Must be called from the thread the sensor events are delivered on.
+     *
+     * @param handler  Handler of the thread the sensor events are delivered on
+     * @param capacity The maximum number of readings passed on at once
+     */
+    protected void enableBatching(Handler handler, int capacity) {
+        this.disableBatching();
+        this.stagedTimestamps = new long[capacity];
+        this.stagedValues = new float[capacity * SampleRingBuffer.AXES];
+        this.stagedCount = 0;
+        this.batchHandler = handler;
+    }
+
+    /**
+     * Pass on all collected readings and go back to handling readings one by one
+     * <p/>
+     * Must be called from the thread the sensor events are delivered on.
+     */
+    protected void disableBatching() {
+        if (null == this.batchHandler) {
+            return;
+        }
+        this.batchHandler.removeCallbacks(this.flushStaged);
+        this.flushStagedReadings();
+        this.batchHandler = null;
+    }
+
+    private void flushStagedReadings() {
+        if (0 == this.stagedCount) {
+            return;
+        }
+        int count = this.stagedCount;
+        this.stagedCount = 0;
+        this.onSensorBatch(this.stagedType, this.stagedAccuracy, this.stagedTimestamps, this.stagedValues, this.stagedValuesPerSample, 0, count);
+    }
+
     /**
      * Call {@link com.abominableshrine.taptounlock.TapDetector.TapObserver#onTap(long, long, DeviceSide)}
      * for all registered observers
@@ -57,22 +185,59 @@ public abstract class BaseTapDetector implements ITapDetector {
      * @param side      The side of the tap
      */
     protected void notifyObservers(long timestamp, long now, DeviceSide side) {
-        for (TapDetector.TapObserver obs : this.observers) {
-            obs.onTap(timestamp, now, side);
+        TapDetector.TapObserver observers[] = this.observers;
+        for (int i = 0; i < observers.length; i++) {
+            observers[i].onTap(timestamp, now, side);
+        }
+    }
+
+    /**
+     * Call {@link com.abominableshrine.taptounlock.TapDetector.TapObserver#onTapRetracted(long, long, DeviceSide)}
+     * for all registered observers
+     * <p/>
+     * The arguments will be passed directly to the observers.
+     *
+     * @param timestamp The timestamp of the retracted tap
+     * @param now       The current time
+     * @param side      The side of the retracted tap
+     */
+    protected void notifyRetraction(long timestamp, long now, DeviceSide side) {
+        TapDetector.TapObserver observers[] = this.observers;
+        for (int i = 0; i < observers.length; i++) {
+            observers[i].onTapRetracted(timestamp, now, side);
         }
     }
 
     @Override
     public void registerTapObserver(TapDetector.TapObserver o) {
-        if (null != o) {
-            this.observers.add(o);
+        if (null == o) {
+            return;
+        }
+        synchronized (this.observersLock) {
+            TapDetector.TapObserver old[] = this.observers;
+            TapDetector.TapObserver updated[] = new TapDetector.TapObserver[old.length + 1];
+            System.arraycopy(old, 0, updated, 0, old.length);
+            updated[old.length] = o;
+            this.observers = updated;
         }
     }
 
     @Override
     public void removeTapObserver(TapDetector.TapObserver o) {
-        if (null != o) {
-            this.observers.remove(o);
+        if (null == o) {
+            return;
+        }
+        synchronized (this.observersLock) {
+            TapDetector.TapObserver old[] = this.observers;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i].equals(o)) {
+                    TapDetector.TapObserver updated[] = new TapDetector.TapObserver[old.length - 1];
+                    System.arraycopy(old, 0, updated, 0, i);
+                    System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                    this.observers = updated;
+                    return;
+                }
+            }
         }
     }
 }
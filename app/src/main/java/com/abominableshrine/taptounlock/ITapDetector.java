@@ -40,6 +40,26 @@ public interface ITapDetector extends SensorEventListener {
      */
     public void onSensorChanged(long timestamp, int senorType, int accuracy, float values[]);
 
+    /**
+     * Notify the detector about a block of sensor readings from the same sensor
+     * <p/>
+     * This is the bulk version of {@link #onSensorChanged(long, int, int, float[])} for readings
+     * that arrive in batches, like the hardware FIFO of a sensor or the replay of a recording. The
+     * readings are passed in parallel primitive arrays so a detector can process the whole block in
+     * one loop. Reading {@code i} has the timestamp {@code timestamps[offset + i]} and the values
+     * {@code values[(offset + i) * valuesPerSample]} to
+     * {@code values[(offset + i + 1) * valuesPerSample - 1]}.
+     *
+     * @param sensorType      The type of sensor with new readings
+     * @param accuracy        The accuracy of the readings
+     * @param timestamps      The timestamps of the readings
+     * @param values          The values of all readings, interleaved
+     * @param valuesPerSample The number of values per reading
+     * @param offset          The index of the first reading in the arrays
+     * @param count           The number of readings
+     */
+    public void onSensorBatch(int sensorType, int accuracy, long timestamps[], float values[], int valuesPerSample, int offset, int count);
+
     /**
      * Notify the detector about accuracy changes
      *
@@ -64,6 +84,25 @@ public interface ITapDetector extends SensorEventListener {
      */
     public void removeTapObserver(TapDetector.TapObserver o);
 
+    /**
+     * Set how long the sensor hardware may hold readings in its FIFO before reporting them
+     * <p/>
+     * Batching readings in hardware lets the application processor sleep between batches at the
+     * cost of detecting taps later. Must be set before {@link #subscribeToSensors(SensorManager)}
+     * and is ignored for sensors without a FIFO.
+     *
+     * @param maxReportLatencyUs The maximum latency in microseconds, 0 to report every reading
+     *                           as soon as possible
+     */
+    public void setMaxReportLatency(int maxReportLatencyUs);
+
+    /**
+     * Get how long the sensor hardware may hold readings in its FIFO before reporting them
+     *
+     * @return The maximum latency in microseconds, 0 if every reading is reported immediately
+     */
+    public int getMaxReportLatency();
+
     /**
      * Subscribe to the Sensors
      *
@@ -84,11 +123,27 @@ public interface ITapDetector extends SensorEventListener {
     public interface TapObserver {
         /**
          * Callback when a Tap has been detected
+         * <p/>
+         * This is called on the thread the detector processes sensor readings on, which may not
+         * be the main thread. Implementations should return quickly.
          *
          * @param timestamp When the tap occured
          * @param now       The current time
          * @param side      The side the device has been tapped
          */
         public void onTap(long timestamp, long now, DeviceSide side);
+
+        /**
+         * Callback when a tap that has been reported before turned out not to be a tap
+         * <p/>
+         * Only detectors that report taps before they are confirmed, like a speculative
+         * {@link TapDetector}, will call this, and only for the last reported tap.
+         *
+         * @param timestamp The timestamp of the retracted tap, as passed to
+         *                  {@link #onTap(long, long, DeviceSide)}
+         * @param now       The current time
+         * @param side      The side of the retracted tap
+         */
+        public void onTapRetracted(long timestamp, long now, DeviceSide side);
     }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Read only access to a sequence of taps
+ * <p/>
+ * Implemented by {@link TapPattern} and by {@link TapHistory.Window}, which reads the taps directly
+ * from a history without copying them. Patterns can be compared with any implementation, see
+ * {@link TapPattern#matches(ITapPattern)}.
+ */
+public interface ITapPattern {
+
+    /**
+     * The number of taps
+     *
+     * @return The number of taps
+     */
+    public int size();
+
+    /**
+     * The time in nanoseconds from the first to the last tap
+     *
+     * @return The duration in nanoseconds
+     */
+    public long duration();
+
+    /**
+     * The side of a tap
+     *
+     * @param i The index of the tap
+     * @return The device side
+     */
+    public DeviceSide getSide(int i);
+
+    /**
+     * The pause between a tap and the previous tap
+     *
+     * @param i The index of the tap
+     * @return The pause in nanoseconds or 0 if it is the first tap
+     */
+    public long getPause(int i);
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Smooths the axes of readings with an exponentially weighted moving average
+ * <p/>
+ * This removes sensor jitter at the cost of flattening short peaks, so the threshold may need to
+ * be lowered when using it.
+ */
+public class LowPassStage extends TapStage {
+
+    private final float alpha;
+    private final float smoothed[];
+    private boolean started;
+
+    /**
+     * Create a new low pass filter
+     *
+     * @param alpha The weight of a new reading, larger than 0 and at most 1
+     */
+    public LowPassStage(float alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha: " + alpha);
+        }
+        this.alpha = alpha;
+        this.smoothed = new float[SampleRingBuffer.AXES];
+        this.started = false;
+    }
+
+    @Override
+    public void process(TapFrame frame) {
+        if (TapFrame.READING == frame.kind) {
+            for (int axis = 0; axis < SampleRingBuffer.AXES; axis++) {
+                if (this.started) {
+                    this.smoothed[axis] += this.alpha * (frame.axes[axis] - this.smoothed[axis]);
+                } else {
+                    this.smoothed[axis] = frame.axes[axis];
+                }
+                frame.axes[axis] = this.smoothed[axis];
+            }
+            this.started = true;
+        }
+        this.emit(frame);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Sets the magnitude of readings to the square sum of their axes
+ */
+public class MagnitudeStage extends TapStage {
+
+    @Override
+    public void process(TapFrame frame) {
+        if (TapFrame.READING == frame.kind) {
+            float magnitude = 0f;
+            for (int axis = 0; axis < SampleRingBuffer.AXES; axis++) {
+                magnitude += frame.axes[axis] * frame.axes[axis];
+            }
+            frame.magnitude = magnitude;
+        }
+        this.emit(frame);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Sets the threshold of readings based on the background noise
+ * <p/>
+ * The variance of each axis is tracked with an exponentially weighted moving average over the
+ * readings below the threshold, so taps themselves do not raise it. Their sum is the noise floor
+ * and the threshold is a multiple of it, but never less than a fixed minimum. Must come after the
+ * {@link MagnitudeStage}.
+ */
+public class NoiseFloorStage extends TapStage {
+
+    private final float minThreshold;
+    /**
+     * Moving average of every axis of the readings below the threshold
+     */
+    private final float noiseMean[];
+    /**
+     * Moving variance of every axis of the readings below the threshold
+     */
+    private final float noiseVariance[];
+    private float noiseFactor;
+    private float noiseSmoothing;
+    /**
+     * The magnitude a reading must exceed to be a tap
+     */
+    private float threshold;
+
+    /**
+     * Create a new noise floor stage
+     *
+     * @param minThreshold   The lowest the threshold can get
+     * @param noiseFactor    See {@link #setNoiseFactor(float)}
+     * @param noiseSmoothing See {@link #setNoiseSmoothing(float)}
+     */
+    public NoiseFloorStage(float minThreshold, float noiseFactor, float noiseSmoothing) {
+        this.minThreshold = minThreshold;
+        this.noiseMean = new float[SampleRingBuffer.AXES];
+        this.noiseVariance = new float[SampleRingBuffer.AXES];
+        this.setNoiseSmoothing(noiseSmoothing);
+        this.setNoiseFactor(noiseFactor);
+    }
+
+    /**
+     * Set how far above the noise floor a reading must be to be a tap
+     *
+     * @param factor The multiple of the noise floor a tap must exceed, 0 to always use the minimum
+     *               threshold
+     */
+    public void setNoiseFactor(float factor) {
+        if (factor < 0) {
+            throw new IllegalArgumentException("factor: " + factor);
+        }
+        this.noiseFactor = factor;
+        this.updateThreshold();
+    }
+
+    /**
+     * Get how far above the noise floor a reading must be to be a tap
+     *
+     * @return The multiple of the noise floor a tap must exceed
+     */
+    public float getNoiseFactor() {
+        return this.noiseFactor;
+    }
+
+    /**
+     * Set how quickly the noise floor follows changes of the background noise
+     *
+     * @param smoothing The weight of a new reading, larger than 0 and at most 1
+     */
+    public void setNoiseSmoothing(float smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("smoothing: " + smoothing);
+        }
+        this.noiseSmoothing = smoothing;
+    }
+
+    /**
+     * Get how quickly the noise floor follows changes of the background noise
+     *
+     * @return The weight of a new reading
+     */
+    public float getNoiseSmoothing() {
+        return this.noiseSmoothing;
+    }
+
+    /**
+     * Get the current estimate of the background noise
+     *
+     * @return The sum of the variances of all axes
+     */
+    public float getNoiseFloor() {
+        float floor = 0f;
+        for (int axis = 0; axis < SampleRingBuffer.AXES; axis++) {
+            floor += this.noiseVariance[axis];
+        }
+        return floor;
+    }
+
+    /**
+     * Get the magnitude a reading must currently exceed to be a tap
+     *
+     * @return The threshold
+     */
+    public float getThreshold() {
+        return this.threshold;
+    }
+
+    @Override
+    public void process(TapFrame frame) {
+        if (TapFrame.READING == frame.kind) {
+            frame.threshold = this.threshold;
+            if (frame.magnitude <= this.threshold) {
+                this.updateNoiseFloor(frame.axes);
+            }
+        }
+        this.emit(frame);
+    }
+
+    private void updateNoiseFloor(float axes[]) {
+        float alpha = this.noiseSmoothing;
+        for (int axis = 0; axis < SampleRingBuffer.AXES; axis++) {
+            float delta = axes[axis] - this.noiseMean[axis];
+            this.noiseMean[axis] += alpha * delta;
+            this.noiseVariance[axis] = (1 - alpha) * (this.noiseVariance[axis] + alpha * delta * delta);
+        }
+        this.updateThreshold();
+    }
+
+    private void updateThreshold() {
+        this.threshold = Math.max(this.minThreshold, this.noiseFactor * this.getNoiseFloor());
+    }
+}
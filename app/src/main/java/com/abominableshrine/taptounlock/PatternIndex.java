@@ -0,0 +1,244 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs many {@link PatternMatcher}s on the same taps, skipping the ones a tap can not affect
+ * <p/>
+ * A matcher only needs to see a tap if it has a live partial match or if the tap could be the
+ * first tap of its pattern. Matchers are bucketed by the side of the first tap of their pattern,
+ * patterns starting with {@link DeviceSide#ANY} are in a wildcard bucket that sees every tap, and
+ * matchers with live partial matches are kept in an active list. A tap is only passed to the
+ * active matchers and the buckets of its side, so the cost per tap depends on the patterns that
+ * could match and not on the number of subscriptions.
+ * <p/>
+ * Values are kept in a hash map and entries know their positions in their bucket and the active
+ * list, so removing a matcher does not search either. Values must implement
+ * {@link Object#equals(Object)} and {@link Object#hashCode()} consistently.
+ *
+ * @param <T> The type of the values the matchers are registered with
+ */
+public class PatternIndex<T> {
+
+    private static final DeviceSide SIDES[] = DeviceSide.values();
+
+    /**
+     * Matchers by the ordinal of the first side of their pattern
+     */
+    private final ArrayList<ArrayList<Entry<T>>> startBuckets;
+    private final HashMap<T, Entry<T>> entries;
+    /**
+     * Matchers with live partial matches
+     */
+    private ArrayList<Entry<T>> active;
+    /**
+     * Swapped with {@link #active} on every tap
+     */
+    private ArrayList<Entry<T>> nextActive;
+    /**
+     * Incremented for every tap to recognize matchers that have already seen it
+     */
+    private long step;
+
+    public PatternIndex() {
+        this.startBuckets = new ArrayList<>(SIDES.length);
+        for (int i = 0; i < SIDES.length; i++) {
+            this.startBuckets.add(new ArrayList<Entry<T>>());
+        }
+        this.entries = new HashMap<>();
+        this.active = new ArrayList<>();
+        this.nextActive = new ArrayList<>();
+        this.step = 0;
+    }
+
+    /**
+     * The number of matchers in the index
+     *
+     * @return The number of matchers
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * The number of matchers that currently have live partial matches
+     *
+     * @return The number of active matchers
+     */
+    public int activeCount() {
+        return this.active.size();
+    }
+
+    /**
+     * Add a matcher
+     * <p/>
+     * The matcher should already have been brought up to date with the history, see
+     * {@link PatternMatcher#reset(TapHistory)}.
+     *
+     * @param matcher The matcher
+     * @param value   The value to report if the matcher matches, must not have been added before
+     */
+    public void add(PatternMatcher matcher, T value) {
+        if (this.entries.containsKey(value)) {
+            throw new IllegalArgumentException("Already added: " + value);
+        }
+        Entry<T> e = new Entry<>(matcher, value);
+        ArrayList<Entry<T>> bucket = this.startBuckets.get(matcher.getPattern().getSide(0).ordinal());
+        e.bucket = bucket;
+        e.position = bucket.size();
+        bucket.add(e);
+        this.entries.put(value, e);
+        if (matcher.getLiveCount() > 0) {
+            addActive(this.active, e);
+        }
+    }
+
+    /**
+     * Remove the matcher registered with a value
+     *
+     * @param value The value the matcher has been added with
+     * @return {@code true} if a matcher has been removed, {@code false} otherwise
+     */
+    public boolean remove(T value) {
+        Entry<T> e = this.entries.remove(value);
+        if (null == e) {
+            return false;
+        }
+        // Move the last matcher of the bucket into the gap
+        Entry<T> last = e.bucket.remove(e.bucket.size() - 1);
+        if (last != e) {
+            last.position = e.position;
+            e.bucket.set(e.position, last);
+        }
+        if (e.activePosition >= 0) {
+            Entry<T> lastActive = this.active.remove(this.active.size() - 1);
+            if (lastActive != e) {
+                lastActive.activePosition = e.activePosition;
+                this.active.set(e.activePosition, lastActive);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pass the most recent tap of the history to all matchers that it can affect
+     *
+     * @param history The history, the last tap is the new one
+     * @param matched Receives the values of all matchers that found their pattern
+     */
+    public void onTap(TapHistory history, List<T> matched) {
+        if (0 == history.size()) {
+            return;
+        }
+        this.step++;
+        DeviceSide side = history.getSide(history.size() - 1);
+
+        ArrayList<Entry<T>> active = this.active;
+        for (int i = 0; i < active.size(); i++) {
+            this.advance(active.get(i), history, matched);
+        }
+        if (DeviceSide.ANY == side) {
+            // Any pattern can start with a tap on any side
+            for (int b = 0; b < this.startBuckets.size(); b++) {
+                this.advanceAll(this.startBuckets.get(b), history, matched);
+            }
+        } else {
+            this.advanceAll(this.startBuckets.get(side.ordinal()), history, matched);
+            this.advanceAll(this.startBuckets.get(DeviceSide.ANY.ordinal()), history, matched);
+        }
+
+        active.clear();
+        this.active = this.nextActive;
+        this.nextActive = active;
+    }
+
+    /**
+     * Reset all matchers to the history, see {@link PatternMatcher#reset(TapHistory)}
+     *
+     * @param history The history
+     */
+    public void reset(TapHistory history) {
+        this.active.clear();
+        for (int b = 0; b < this.startBuckets.size(); b++) {
+            ArrayList<Entry<T>> bucket = this.startBuckets.get(b);
+            for (int i = 0; i < bucket.size(); i++) {
+                Entry<T> e = bucket.get(i);
+                e.matcher.reset(history);
+                e.activePosition = -1;
+                if (e.matcher.getLiveCount() > 0) {
+                    addActive(this.active, e);
+                }
+            }
+        }
+    }
+
+    private void advanceAll(ArrayList<Entry<T>> bucket, TapHistory history, List<T> matched) {
+        for (int i = 0; i < bucket.size(); i++) {
+            this.advance(bucket.get(i), history, matched);
+        }
+    }
+
+    private void advance(Entry<T> e, TapHistory history, List<T> matched) {
+        if (e.step == this.step) {
+            return;
+        }
+        e.step = this.step;
+        if (e.matcher.onTap(history)) {
+            matched.add(e.value);
+        }
+        e.activePosition = -1;
+        if (e.matcher.getLiveCount() > 0) {
+            addActive(this.nextActive, e);
+        }
+    }
+
+    private static <T> void addActive(ArrayList<Entry<T>> active, Entry<T> e) {
+        e.activePosition = active.size();
+        active.add(e);
+    }
+
+    private static class Entry<T> {
+        final PatternMatcher matcher;
+        final T value;
+        ArrayList<Entry<T>> bucket;
+        /**
+         * The index of the entry in its bucket
+         */
+        int position;
+        /**
+         * The index of the entry in the active list, -1 if it has no live partial matches
+         */
+        int activePosition;
+        /**
+         * The last step the matcher has seen
+         */
+        long step;
+
+        Entry(PatternMatcher matcher, T value) {
+            this.matcher = matcher;
+            this.value = value;
+            this.bucket = null;
+            this.position = 0;
+            this.activePosition = -1;
+            this.step = 0;
+        }
+    }
+}
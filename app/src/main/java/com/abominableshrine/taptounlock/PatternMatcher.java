@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Finds a {@link TapPattern} in a stream of taps one tap at a time
+ * <p/>
+ * Every tap that could be the first tap of the pattern starts a partial match. Each following tap
+ * either advances a partial match by one tap or ends it, if its side or the pause before it can not
+ * be part of a match. As partial matches always end at the most recent tap, they only differ by the
+ * number of taps they have matched so far. Processing a tap therefore only costs as much as there
+ * are live partial matches, regardless of the length of the history.
+ * <p/>
+ * The pause checks are necessary conditions only. {@link TapPattern#matches(TapPattern)} allows
+ * the whole pattern to be scaled in time, so a pause is accepted if it is within the tolerance for
+ * any allowed scale. Once all taps have been matched the full comparison decides.
+ * <p/>
+ * Nothing is allocated while taps are processed.
+ */
+public class PatternMatcher {
+
+    /**
+     * The smallest and largest factor a single pause may differ by in a match, the tolerance for
+     * the duration times the tolerance for a single tap, with some margin for rounding
+     */
+    private static final long MIN_PAUSE_PERCENT = 55;
+    private static final long MAX_PAUSE_PERCENT = 157;
+    private static final long MAX_DURATION_PERCENT = 131;
+
+    private final TapPattern pattern;
+    private final long minPauses[];
+    private final long maxPauses[];
+    private final long maxDuration;
+    /**
+     * The number of taps matched by every live partial match
+     */
+    private final int liveLengths[];
+    /**
+     * The time from the first to the last tap of every live partial match
+     */
+    private final long liveDurations[];
+    private int liveCount;
+    /**
+     * Reused to compare the taps of a completed partial match to the pattern
+     */
+    private final TapHistory.Window window;
+
+    /**
+     * Create a matcher for a pattern
+     *
+     * @param pattern The pattern to look for
+     */
+    public PatternMatcher(TapPattern pattern) {
+        if (null == pattern || 0 == pattern.size()) {
+            throw new IllegalArgumentException("pattern must not be empty");
+        }
+        this.pattern = pattern;
+        int n = pattern.size();
+        this.minPauses = new long[n];
+        this.maxPauses = new long[n];
+        for (int i = 1; i < n; i++) {
+            this.minPauses[i] = pattern.getPause(i) * MIN_PAUSE_PERCENT / 100;
+            this.maxPauses[i] = pattern.getPause(i) * MAX_PAUSE_PERCENT / 100 + 1;
+        }
+        this.maxDuration = pattern.duration() * MAX_DURATION_PERCENT / 100 + 1;
+        this.liveLengths = new int[n];
+        this.liveDurations = new long[n];
+        this.liveCount = 0;
+        this.window = new TapHistory.Window();
+    }
+
+    /**
+     * The pattern this matcher looks for
+     *
+     * @return The pattern
+     */
+    public TapPattern getPattern() {
+        return this.pattern;
+    }
+
+    /**
+     * The number of partial matches that are still alive
+     *
+     * @return The number of partial matches
+     */
+    public int getLiveCount() {
+        return this.liveCount;
+    }
+
+    /**
+     * Process the most recent tap of the history
+     *
+     * @param history The history, the last tap is the new one
+     * @return {@code true} if the pattern matches the most recent taps, {@code false} otherwise
+     */
+    public boolean onTap(TapHistory history) {
+        int last = history.size() - 1;
+        if (last < 0) {
+            return false;
+        }
+        return this.advance(history, last, true);
+    }
+
+    /**
+     * Forget all partial matches and start over from the taps in the history
+     * <p/>
+     * Used when the history changed other than by adding a tap, or to pick up the taps a new
+     * matcher has missed. The taps are replayed without reporting matches, only taps that are
+     * added afterwards can complete a match.
+     *
+     * @param history The history
+     */
+    public void reset(TapHistory history) {
+        this.liveCount = 0;
+        int size = history.size();
+        // Only the last n - 1 taps can be part of a match completed by the next tap
+        for (int i = Math.max(0, size - (this.pattern.size() - 1)); i < size; i++) {
+            this.advance(history, i, false);
+        }
+    }
+
+    /**
+     * Advance all partial matches by a tap and start a new one with it
+     *
+     * @param history  The history
+     * @param index    The index of the tap in the history
+     * @param complete Whether partial matches may be completed by the tap
+     * @return {@code true} if a partial match has been completed and matches, {@code false}
+     * otherwise
+     */
+    private boolean advance(TapHistory history, int index, boolean complete) {
+        DeviceSide side = history.getSide(index);
+        long pause = index > 0 ? history.getTimestamp(index) - history.getTimestamp(index - 1) : 0;
+        int n = this.pattern.size();
+        boolean matched = false;
+
+        // Advance all partial matches, keeping the survivors in order
+        int kept = 0;
+        for (int i = 0; i < this.liveCount; i++) {
+            int length = this.liveLengths[i];
+            long duration = this.liveDurations[i] + pause;
+            if (pause < this.minPauses[length] || pause > this.maxPauses[length]
+                    || duration > this.maxDuration || !this.isSideAllowed(length, side)) {
+                continue;
+            }
+            if (length + 1 == n) {
+                matched |= complete && this.matches(history, index - length);
+                continue;
+            }
+            this.liveLengths[kept] = length + 1;
+            this.liveDurations[kept] = duration;
+            kept++;
+        }
+        this.liveCount = kept;
+
+        // Every tap may be the start of a new match
+        if (this.isSideAllowed(0, side)) {
+            if (1 == n) {
+                matched |= complete && this.matches(history, index);
+            } else {
+                this.liveLengths[this.liveCount] = 1;
+                this.liveDurations[this.liveCount] = 0;
+                this.liveCount++;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Compare the taps of the history beginning at start to the pattern
+     */
+    private boolean matches(TapHistory history, int start) {
+        // The first taps of a partial match may have been evicted from the history
+        if (start < 0) {
+            return false;
+        }
+        return this.pattern.matches(this.window.set(history, start, this.pattern.size()));
+    }
+
+    private boolean isSideAllowed(int index, DeviceSide side) {
+        DeviceSide expected = this.pattern.getSide(index);
+        return expected == side || DeviceSide.ANY == expected || DeviceSide.ANY == side;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Turns readings into taps by finding peaks of their magnitude
+ * <p/>
+ * A reading is a tap if its magnitude is larger than all readings in a time window before and
+ * after it and larger than its threshold. Of equal readings the first one wins. As the window is a
+ * time span and not a number of readings, detection behaves the same regardless of the rate a
+ * device delivers readings at.
+ * <p/>
+ * The largest reading of the window is tracked with a monotonic deque, a queue of readings with
+ * non-increasing magnitudes, so every reading costs amortized O(1).
+ * <p/>
+ * By default a tap is emitted once the window after it has passed. In speculative mode, see
+ * {@link #setSpeculative(boolean)}, it is emitted as soon as the magnitudes start to fall again and
+ * a {@link TapFrame#RETRACTION} follows if a larger reading follows within the window.
+ * <p/>
+ * Readings are kept in a preallocated {@link SampleRingBuffer} so processing a reading does not
+ * allocate any memory.
+ */
+public class PeakStage extends TapStage {
+
+    /**
+     * The minimum number of samples kept in {@link #samples}
+     * <p/>
+     * The deque looks back two peak windows, this is enough for a 125 ms window at 1 kHz.
+     */
+    private static final int SAMPLE_BUFFER_SIZE = 256;
+    /**
+     * The highest rate in Hz readings are expected at, the sample buffer holds two peak windows
+     * of them
+     */
+    private static final long MAX_SAMPLE_RATE = 1000;
+    /**
+     * The longest peak window in nanoseconds
+     */
+    public static final long MAX_PEAK_WINDOW = 10000000000L;
+    /**
+     * The most recent samples. This is allocated once so processing a reading never allocates.
+     */
+    private final SampleRingBuffer samples;
+    /**
+     * The magnitudes of the samples in the same slots of {@link #samples}
+     */
+    private final float magnitudes[];
+    /**
+     * Sequence numbers of samples in {@link #samples} with non-increasing magnitudes
+     */
+    private final long peakCandidates[];
+    /**
+     * Whether the candidate in the same slot of {@link #peakCandidates} has a sample at least as
+     * large less than a window before it
+     */
+    private final boolean dominated[];
+    /**
+     * The threshold at the time the candidate in the same slot of {@link #peakCandidates} was read
+     */
+    private final float candidateThresholds[];
+    private final int mask;
+    private long candidateHead;
+    private long candidateTail;
+    /**
+     * The sequence number of the last candidate that has been decided on
+     */
+    private long lastDecidedSeq;
+    /**
+     * The time in nanoseconds a tap must be larger than its surrounding readings
+     */
+    private long peakWindow;
+    /**
+     * Whether taps are emitted before the window after them has passed
+     */
+    private boolean speculative;
+    /**
+     * The sequence number of the tap that has been emitted speculatively but not yet confirmed,
+     * -1 if there is none
+     */
+    private long speculativeSeq;
+    /**
+     * The frame taps are emitted in
+     */
+    private final TapFrame tap;
+
+    /**
+     * Create a new peak stage
+     * <p/>
+     * The sample buffer is sized for the window, see {@link #setPeakWindow(long)} for longer
+     * windows.
+     *
+     * @param peakWindow See {@link #setPeakWindow(long)}
+     */
+    public PeakStage(long peakWindow) {
+        checkPeakWindow(peakWindow);
+        this.samples = new SampleRingBuffer(Math.max(SAMPLE_BUFFER_SIZE, samplesFor(peakWindow)));
+        this.magnitudes = new float[this.samples.capacity()];
+        this.peakCandidates = new long[this.samples.capacity()];
+        this.dominated = new boolean[this.samples.capacity()];
+        this.candidateThresholds = new float[this.samples.capacity()];
+        this.mask = this.samples.capacity() - 1;
+        this.candidateHead = 0;
+        this.candidateTail = 0;
+        this.lastDecidedSeq = -1;
+        this.setPeakWindow(peakWindow);
+        this.speculative = false;
+        this.speculativeSeq = -1;
+        this.tap = new TapFrame();
+    }
+
+    /**
+     * Set the time a tap must be larger than all readings before and after it
+     * <p/>
+     * Taps closer to each other than this will be detected as one. Longer windows delay the
+     * detection of taps.
+     * <p/>
+     * The sample buffer is not resized, two windows of readings at the highest expected sensor
+     * rate must fit into the buffer allocated for the window given to the constructor.
+     *
+     * @param nanos The window in nanoseconds
+     * @throws IllegalArgumentException If the window is not positive, longer than
+     *                                  {@link #MAX_PEAK_WINDOW} or does not fit the sample buffer
+     */
+    public void setPeakWindow(long nanos) {
+        checkPeakWindow(nanos);
+        if (null != this.samples && samplesFor(nanos) > this.samples.capacity()) {
+            throw new IllegalArgumentException("nanos: " + nanos + " exceeds the sample buffer of " + this.samples.capacity());
+        }
+        this.peakWindow = nanos;
+    }
+
+    private static void checkPeakWindow(long nanos) {
+        if (nanos <= 0 || nanos > MAX_PEAK_WINDOW) {
+            throw new IllegalArgumentException("nanos: " + nanos);
+        }
+    }
+
+    /**
+     * The number of samples the deque may look back on for a window
+     */
+    private static int samplesFor(long peakWindow) {
+        return (int) (2 * peakWindow * MAX_SAMPLE_RATE / 1000000000L) + 2;
+    }
+
+    /**
+     * Get the time a tap must be larger than all readings before and after it
+     *
+     * @return The window in nanoseconds
+     */
+    public long getPeakWindow() {
+        return this.peakWindow;
+    }
+
+    /**
+     * Emit taps as soon as the magnitudes fall after a peak above the threshold
+     *
+     * @param speculative {@code true} to emit taps early, {@code false} to emit them once they
+     *                    are confirmed
+     */
+    public void setSpeculative(boolean speculative) {
+        this.speculative = speculative;
+    }
+
+    /**
+     * Check if taps are emitted before they have been confirmed
+     *
+     * @return {@code true} if taps are emitted early, {@code false} otherwise
+     */
+    public boolean isSpeculative() {
+        return this.speculative;
+    }
+
+    @Override
+    public void process(TapFrame frame) {
+        if (TapFrame.READING != frame.kind) {
+            this.emit(frame);
+            return;
+        }
+
+        long seq = this.samples.add(frame.timestamp, frame.axes);
+        long timestamp = frame.timestamp;
+        float magnitude = frame.magnitude;
+        this.magnitudes[(int) seq & this.mask] = magnitude;
+
+        // Forget readings that have been overwritten in the sample buffer
+        while (this.candidateTail > this.candidateHead && !this.samples.contains(this.candidate(this.candidateHead))) {
+            this.candidateHead++;
+        }
+
+        // Decide on the candidates before this reading can replace them, after a gap in the
+        // readings they may be far older than a window
+        while (this.candidateTail > this.candidateHead) {
+            long head = this.candidate(this.candidateHead);
+            long headTimestamp = this.samples.timestamp(head);
+            if (headTimestamp > timestamp - this.peakWindow) {
+                break;
+            }
+            // The head is the largest reading of the last two windows. Once it is a window old,
+            // no larger reading followed it.
+            if (head > this.lastDecidedSeq) {
+                this.lastDecidedSeq = head;
+                int headSlot = (int) this.candidateHead & this.mask;
+                if (head == this.speculativeSeq) {
+                    // Already emitted, it is confirmed now
+                    this.speculativeSeq = -1;
+                } else if (!this.dominated[headSlot] && this.magnitude(head) > this.candidateThresholds[headSlot]) {
+                    this.emitTap(TapFrame.TAP, head, this.candidateHead, timestamp);
+                }
+            }
+            // Keep it while it may still dominate undecided candidates
+            if (headTimestamp >= timestamp - 2 * this.peakWindow) {
+                break;
+            }
+            this.candidateHead++;
+        }
+
+        // Smaller readings before this one can never be a peak anymore, equal ones stay to win a tie
+        while (this.candidateTail > this.candidateHead && this.magnitude(this.candidate(this.candidateTail - 1)) < magnitude) {
+            if (this.candidate(this.candidateTail - 1) == this.speculativeSeq) {
+                this.emitTap(TapFrame.RETRACTION, this.speculativeSeq, this.candidateTail - 1, timestamp);
+                this.speculativeSeq = -1;
+            }
+            this.candidateTail--;
+        }
+
+        // If the previous reading is still a candidate it is at least as large as this one, so
+        // the readings started falling or a tie it wins
+        if (this.speculative && this.candidateTail > this.candidateHead) {
+            long previous = this.candidate(this.candidateTail - 1);
+            int previousSlot = (int) (this.candidateTail - 1) & this.mask;
+            if (previous == seq - 1 && previous > this.lastDecidedSeq && !this.dominated[previousSlot]
+                    && this.magnitude(previous) > this.candidateThresholds[previousSlot]) {
+                this.speculativeSeq = previous;
+                this.emitTap(TapFrame.TAP, previous, this.candidateTail - 1, timestamp);
+            }
+        }
+
+        int slot = (int) this.candidateTail & this.mask;
+        this.peakCandidates[slot] = seq;
+        this.candidateThresholds[slot] = frame.threshold;
+        // The candidate before this one is at least as large, if it is within the window this is no
+        // peak
+        this.dominated[slot] = this.candidateTail > this.candidateHead
+                && this.samples.timestamp(this.candidate(this.candidateTail - 1)) >= timestamp - this.peakWindow;
+        this.candidateTail++;
+    }
+
+    /**
+     * Emit a tap or retraction for a candidate
+     *
+     * @param kind      {@link TapFrame#TAP} or {@link TapFrame#RETRACTION}
+     * @param seq       The sequence number of the reading of the tap
+     * @param candidate The index of the reading in {@link #peakCandidates}
+     * @param now       The timestamp of the reading being processed
+     */
+    private void emitTap(int kind, long seq, long candidate, long now) {
+        this.tap.kind = kind;
+        this.tap.timestamp = this.samples.timestamp(seq);
+        this.tap.now = now;
+        for (int axis = 0; axis < SampleRingBuffer.AXES; axis++) {
+            this.tap.axes[axis] = this.samples.axis(seq, axis);
+        }
+        this.tap.magnitude = this.magnitude(seq);
+        this.tap.threshold = this.candidateThresholds[(int) candidate & this.mask];
+        this.tap.side = DeviceSide.ANY;
+        this.emit(this.tap);
+    }
+
+    private long candidate(long i) {
+        return this.peakCandidates[(int) i & this.mask];
+    }
+
+    private float magnitude(long seq) {
+        return this.magnitudes[(int) seq & this.mask];
+    }
+}
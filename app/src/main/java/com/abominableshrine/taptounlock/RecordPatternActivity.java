@@ -38,11 +38,20 @@ import android.widget.TextView;
  * State machine based UI. */
 public class RecordPatternActivity extends Activity {
     private boolean DEBUG = AppConstants.DEBUG;
-    private boolean waitingForPattern; // TODO: First implement TapPatternDetectorClient.unsubscribe(), then remove this variable
 
     private ActivityState currentActivityState;
     private long fromTime = 0L;
     private static final long CUT_OFF_TIME = -150000000L;
+    /**
+     * The number of streamed taps that may wait for the UI thread
+     */
+    private static final int TAP_STREAM_WINDOW = 16;
+    private static final int RECORDING_CAPACITY = 64;
+    private static final long RECORDING_MAX_AGE = 60 * 1000000000L;
+    /**
+     * The taps streamed while recording, in the elapsed realtime clock
+     */
+    private TapHistory recordedTaps = new TapHistory(RECORDING_CAPACITY, RECORDING_MAX_AGE);
     private TextView recordingText;
     private TextView explanationText;
     private Button proceedButton;
@@ -111,8 +120,21 @@ public class RecordPatternActivity extends Activity {
             mTapPattern = pattern;
         }
 
+        @Override
+        public void onTap(long timestamp, DeviceSide side) {
+            if (currentActivityState == ActivityState.RECORDING) {
+                recordedTaps.add(timestamp, side);
+            }
+        }
+
+        @Override
+        public void onTapRetracted(long timestamp, DeviceSide side) {
+            recordedTaps.remove(timestamp);
+        }
+
         @Override
         public void onPatternMatch(TapPattern pattern) { // In confirming state
+            mOnClickListener.stopConfirming();
             mOnClickListener.toFinalState();
         }
     }
@@ -123,8 +145,15 @@ public class RecordPatternActivity extends Activity {
             switch (v.getId()) {
                 case R.id.record_pattern_button:
                     if(currentActivityState == ActivityState.INIT) {
-                        // Take the current time, let the TapPatterDetectorService do the rest
+                        // Take the current time and record the taps streamed from now on
                         fromTime = SystemClock.elapsedRealtimeNanos();
+                        recordedTaps.clear();
+                        try {
+                            mRecordPatternActivityTapPatternDetectorClient.subscribeTaps(TAP_STREAM_WINDOW);
+                        } catch (RemoteException e) {
+                            // TODO: Handle Exception
+                            e.printStackTrace();
+                        }
                         if(DEBUG) Log.d(AppConstants.TAG, "Recording pattern");
                         toRecordingState();
                     }
@@ -142,14 +171,13 @@ public class RecordPatternActivity extends Activity {
                     break;
                 case R.id.proceed_button:
                     if (currentActivityState == ActivityState.RECORDING) {
-                        // Get the recorded pattern from the TapPatternDetectorService
-                        fromTime = fromTime - SystemClock.elapsedRealtimeNanos(); // Calculates the time span
-                        try {
-                            mRecordPatternActivityTapPatternDetectorClient.requestRecentTaps(fromTime, CUT_OFF_TIME);
-                        } catch (RemoteException e) {
-                            // TODO: Handle Exception
-                            e.printStackTrace();
-                        }
+                        // Leave out the tap of pressing the button
+                        long toTime = SystemClock.elapsedRealtimeNanos() + CUT_OFF_TIME;
+                        stopRecording();
+                        int start = recordedTaps.indexOf(fromTime);
+                        int end = recordedTaps.indexOf(toTime + 1);
+                        mTapPattern = TapPattern.copyOf(new TapHistory.Window().set(recordedTaps, start, Math.max(0, end - start)));
+                        if(DEBUG) Log.d(AppConstants.TAG, "Recorded Tap Pattern. " + mTapPattern);
                         toPatternRecordedState();
                     }
                     else { // currentActivityState == ActivityState.FINAL
@@ -157,9 +185,8 @@ public class RecordPatternActivity extends Activity {
                             unlockServiceClass = Class.forName("com.abominableshrine.taptounlock.UnlockService");
                             if (Utils.isServiceRunning(getApplicationContext(), unlockServiceClass)) {
                                 // second pattern has been confirmed, now set it globally,
-                                // unsubscribe to it from here and go back to the MainActivity
+                                // and go back to the MainActivity
                                 UnlockService.instance.subscribeToPattern(mTapPattern);
-                                // mRecordPatternActivityTapPatternDetectorClient.unsubscribe(mTapPattern); This does not work yet. First, implement TapPatternDetectorClient.unsubscribe()
                                 NavUtils.navigateUpFromSameTask(RecordPatternActivity.this);
                             }
                             else {
@@ -172,8 +199,16 @@ public class RecordPatternActivity extends Activity {
                     }
                     break;
                 case R.id.retry_button:
-                    if (currentActivityState == ActivityState.CONFIRMING) toPatternRecordedState();
-                    else toInitState();
+                    if (currentActivityState == ActivityState.CONFIRMING) {
+                        stopConfirming();
+                        toPatternRecordedState();
+                    }
+                    else {
+                        if (currentActivityState == ActivityState.RECORDING) {
+                            stopRecording();
+                        }
+                        toInitState();
+                    }
                     break;
                 default:
                     Log.e(AppConstants.TAG, "Unknown view clicked, this should not happen!");
@@ -226,8 +261,30 @@ public class RecordPatternActivity extends Activity {
             retryButton.setEnabled(true);
             explanationText.setText(R.string.record_pattern_second_explanation);
             currentActivityState = ActivityState.CONFIRMING;
+        }
+
+        /**
+         * Stop streaming the taps of the pattern being recorded
+         */
+        private void stopRecording() {
+            try {
+                mRecordPatternActivityTapPatternDetectorClient.unsubscribeTaps();
+            } catch (RemoteException e) {
+                // TODO: Handle Exception
+                e.printStackTrace();
+            }
+        }
 
-            waitingForPattern = true;
+        /**
+         * Stop listening for the pattern being confirmed
+         */
+        private void stopConfirming() {
+            try {
+                mRecordPatternActivityTapPatternDetectorClient.unsubscribe(mTapPattern);
+            } catch (RemoteException e) {
+                // TODO: Handle Exception
+                e.printStackTrace();
+            }
         }
 
         private void toFinalState() {
@@ -240,8 +297,6 @@ public class RecordPatternActivity extends Activity {
             retryButton.setEnabled(true);
             explanationText.setText(R.string.set_pattern_or_not);
             currentActivityState = ActivityState.FINAL;
-
-            waitingForPattern = false;
         }
     }
 
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Drops taps that follow another tap too closely
+ * <p/>
+ * A tap makes the device ring for a moment, which can be detected as further taps. Retractions of
+ * dropped taps are dropped as well and retracting a passed tap ends its refractory period.
+ */
+public class RefractoryStage extends TapStage {
+
+    private long refractoryPeriod;
+    /**
+     * The timestamp of the last tap passed on, {@link Long#MIN_VALUE} if there is none
+     */
+    private long lastTap;
+    /**
+     * The timestamp of the tap passed on before {@link #lastTap}
+     */
+    private long previousTap;
+
+    /**
+     * Create a new refractory stage
+     *
+     * @param refractoryPeriod See {@link #setRefractoryPeriod(long)}
+     */
+    public RefractoryStage(long refractoryPeriod) {
+        this.setRefractoryPeriod(refractoryPeriod);
+        this.lastTap = Long.MIN_VALUE;
+        this.previousTap = Long.MIN_VALUE;
+    }
+
+    /**
+     * Set the time after a tap in which no further taps are passed on
+     *
+     * @param nanos The period in nanoseconds
+     */
+    public void setRefractoryPeriod(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("nanos: " + nanos);
+        }
+        this.refractoryPeriod = nanos;
+    }
+
+    /**
+     * Get the time after a tap in which no further taps are passed on
+     *
+     * @return The period in nanoseconds
+     */
+    public long getRefractoryPeriod() {
+        return this.refractoryPeriod;
+    }
+
+    @Override
+    public void process(TapFrame frame) {
+        switch (frame.kind) {
+            case TapFrame.TAP:
+                if (Long.MIN_VALUE != this.lastTap && frame.timestamp - this.lastTap < this.refractoryPeriod) {
+                    return;
+                }
+                this.previousTap = this.lastTap;
+                this.lastTap = frame.timestamp;
+                break;
+            case TapFrame.RETRACTION:
+                if (frame.timestamp != this.lastTap) {
+                    return;
+                }
+                this.lastTap = this.previousTap;
+                this.previousTap = Long.MIN_VALUE;
+                break;
+        }
+        this.emit(frame);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived root shell that runs jobs of shell commands one after the other
+ * <p/>
+ * The shell is started as soon as the worker thread starts, so the superuser handshake is done
+ * before the first job arrives and a job only costs writing its commands to the shell. After the
+ * commands of a job the shell echoes a marker with the exit status of the last command, which
+ * completes the {@link Job}.
+ * <p/>
+ * If the shell dies it is started again for the next job. A job is only tried once more in a new
+ * shell if none of its commands reached the old one, jobs like an unlock must not run twice. A job
+ * that does not complete within the timeout fails and its shell is destroyed, so a shell waiting
+ * for the superuser prompt or a hanging command cannot block the following jobs. Jobs are queued on
+ * a {@link HandlerThread}, callers never wait for the shell unless they ask to with
+ * {@link Job#await(long)}.
+ */
+public class RootShell {
+
+    /**
+     * The exit code of a job that could not be run by any shell
+     */
+    public static final int FAILED = -1;
+    /**
+     * The default time a job may take, long enough for the user to answer the superuser prompt
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+    private static final String MARKER = "RootShell:";
+    private static final String TAG = RootShell.class.getSimpleName();
+
+    private final String command[];
+    private final long timeoutMillis;
+    private HandlerThread thread;
+    private Handler handler;
+    /**
+     * Destroys shells that take too long, {@link #thread} is blocked reading from them
+     */
+    private HandlerThread watchdogThread;
+    private Handler watchdog;
+    /**
+     * The running shell and its pipes, only accessed from {@link #thread} except for the watchdog
+     * destroying the shell
+     */
+    private volatile Process process;
+    private OutputStream stdin;
+    private BufferedReader stdout;
+    private long jobCount;
+    private volatile int spawnCount;
+
+    /**
+     * Create a new superuser shell
+     */
+    public RootShell() {
+        this("su");
+    }
+
+    /**
+     * Create a new shell running a different command
+     *
+     * @param command The command and arguments starting the shell
+     */
+    public RootShell(String... command) {
+        this(DEFAULT_TIMEOUT_MILLIS, command);
+    }
+
+    /**
+     * Create a new shell running a different command with a different timeout
+     *
+     * @param timeoutMillis The maximum time a job may take in milliseconds
+     * @param command       The command and arguments starting the shell
+     */
+    public RootShell(long timeoutMillis, String... command) {
+        if (0 == command.length || timeoutMillis <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.command = command;
+    }
+
+    /**
+     * Start the worker thread and the shell
+     */
+    public synchronized void start() {
+        if (null != this.thread) {
+            return;
+        }
+        this.thread = new HandlerThread(TAG);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+        this.watchdogThread = new HandlerThread(TAG + "Watchdog");
+        this.watchdogThread.start();
+        this.watchdog = new Handler(this.watchdogThread.getLooper());
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    spawn();
+                } catch (IOException e) {
+                    // Tried again with the first job
+                    Log.w(TAG, "Cannot start shell: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue commands to run in the shell
+     *
+     * @param commands The commands, one per line
+     * @return The job to wait for, if at all
+     * @throws IllegalStateException If the shell has not been started or has been closed
+     */
+    public synchronized Job submit(String... commands) {
+        if (null == this.handler) {
+            throw new IllegalStateException("Not running");
+        }
+        final Job job = new Job(commands);
+        final Handler watchdog = this.watchdog;
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Runnable timeout = new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.w(TAG, "Job timed out, destroying shell");
+                        destroy(RootShell.this.process);
+                    }
+                };
+                watchdog.postDelayed(timeout, timeoutMillis);
+                job.finish(execute(job));
+                watchdog.removeCallbacks(timeout);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Run the jobs queued so far, then exit the shell and stop the worker thread
+     */
+    public synchronized void close() {
+        if (null == this.thread) {
+            return;
+        }
+        final HandlerThread watchdogThread = this.watchdogThread;
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                kill();
+                // Only now, the jobs queued before had to keep their timeouts
+                watchdogThread.quit();
+            }
+        });
+        this.thread.quitSafely();
+        this.thread = null;
+        this.handler = null;
+        this.watchdogThread = null;
+        this.watchdog = null;
+    }
+
+    /**
+     * The number of times a shell has been started, for tests and debugging
+     */
+    public int getSpawnCount() {
+        return this.spawnCount;
+    }
+
+    private void spawn() throws IOException {
+        // Errors go to the same pipe, so they cannot fill up a pipe nobody reads
+        this.process = new ProcessBuilder(this.command).redirectErrorStream(true).start();
+        this.stdin = this.process.getOutputStream();
+        this.stdout = new BufferedReader(new InputStreamReader(this.process.getInputStream()));
+        this.spawnCount++;
+    }
+
+    /**
+     * Destroy a shell from another thread, so a read blocked on it returns
+     */
+    private static void destroy(Process process) {
+        if (null == process) {
+            return;
+        }
+        process.destroy();
+        // The shell started by su may still hold the pipe open
+        try {
+            process.getInputStream().close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+    }
+
+    private void kill() {
+        if (null == this.process) {
+            return;
+        }
+        try {
+            this.stdin.write("exit\n".getBytes());
+            this.stdin.flush();
+        } catch (IOException e) {
+            // Already gone
+        }
+        this.process.destroy();
+        this.process = null;
+        this.stdin = null;
+        this.stdout = null;
+    }
+
+    /**
+     * Run a job, starting a new shell if there is none or the current one is dead before the job
+     * has been sent to it
+     *
+     * @return The exit code of the last command of the job or {@link #FAILED}
+     */
+    private int execute(Job job) {
+        String marker = MARKER + (++this.jobCount) + " ";
+        StringBuilder script = new StringBuilder();
+        for (String c : job.commands) {
+            script.append(c).append('\n');
+        }
+        script.append("echo ").append(marker).append("$?\n");
+        byte bytes[] = script.toString().getBytes();
+
+        boolean sent = false;
+        for (int attempt = 0; attempt < 2 && !sent; attempt++) {
+            try {
+                if (null == this.process) {
+                    this.spawn();
+                }
+                this.stdin.write(bytes);
+                this.stdin.flush();
+                sent = true;
+            } catch (IOException e) {
+                // None of the commands ran, so they can be sent to a new shell
+                Log.w(TAG, "Shell died: " + e);
+                this.kill();
+            }
+        }
+        if (!sent) {
+            return FAILED;
+        }
+        try {
+            return this.awaitMarker(marker);
+        } catch (IOException e) {
+            // Some of the commands may have run, running them again is not safe
+            Log.w(TAG, "Shell died on job: " + e);
+            this.kill();
+            return FAILED;
+        }
+    }
+
+    private int awaitMarker(String marker) throws IOException {
+        String line;
+        while (null != (line = this.stdout.readLine())) {
+            // Output of the commands without a final newline ends up in front of the marker
+            int i = line.indexOf(marker);
+            if (i >= 0) {
+                try {
+                    return Integer.parseInt(line.substring(i + marker.length()).trim());
+                } catch (NumberFormatException e) {
+                    return FAILED;
+                }
+            }
+        }
+        throw new IOException("Shell exited");
+    }
+
+    /**
+     * Commands queued with {@link #submit(String...)}
+     */
+    public static class Job {
+        private final String commands[];
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int exitCode = FAILED;
+
+        private Job(String commands[]) {
+            this.commands = commands;
+        }
+
+        private void finish(int exitCode) {
+            this.exitCode = exitCode;
+            this.done.countDown();
+        }
+
+        /**
+         * Wait for the job to complete
+         *
+         * @param timeoutMillis The maximum time to wait in milliseconds
+         * @return {@code true} if the job is done, {@code false} if the time ran out
+         */
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            return this.done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isDone() {
+            return 0 == this.done.getCount();
+        }
+
+        /**
+         * The exit code of the last command
+         *
+         * @return The exit code or {@link #FAILED} if no shell could run the job, the shell died
+         * on it, it timed out or it is not done
+         */
+        public int getExitCode() {
+            return this.exitCode;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Fixed size ring buffer of three axis sensor samples
+ * <p/>
+ * All storage is allocated up front, timestamps are kept in a {@code long[]} and the axes of all
+ * samples interleaved in a single {@code float[]}, so adding and reading samples never allocates.
+ * <p/>
+ * Samples are addressed by their sequence number, which is assigned when the sample is added and
+ * increases by one for every sample. Only the last {@link #capacity()} samples can be read, older
+ * ones are overwritten.
+ */
+public class SampleRingBuffer {
+
+    /**
+     * The number of axes stored per sample
+     */
+    public static final int AXES = 3;
+
+    private final long timestamps[];
+    private final float axes[];
+    private final int mask;
+    /**
+     * The sequence number the next sample will get
+     */
+    private long next;
+
+    /**
+     * Create a new ring buffer
+     *
+     * @param capacity The minimum number of samples to keep. Will be rounded up to the next power
+     *                 of two
+     */
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.axes = new float[size * AXES];
+        this.next = 0;
+    }
+
+    /**
+     * Add a new sample to the buffer
+     * <p/>
+     * Only the first {@link #AXES} values are stored, missing values are stored as 0.
+     *
+     * @param timestamp The timestamp of the sample
+     * @param values    The sensor readings
+     * @return The sequence number of the sample
+     */
+    public long add(long timestamp, float values[]) {
+        return this.add(timestamp, values, 0, values.length);
+    }
+
+    /**
+     * Add a new sample to the buffer, reading its values from a larger array
+     * <p/>
+     * Only the first {@link #AXES} values are stored, missing values are stored as 0.
+     *
+     * @param timestamp The timestamp of the sample
+     * @param values    The array holding the sensor readings
+     * @param offset    The index of the first reading of this sample in {@code values}
+     * @param count     The number of readings of this sample
+     * @return The sequence number of the sample
+     */
+    public long add(long timestamp, float values[], int offset, int count) {
+        long seq = this.next++;
+        int i = (int) seq & this.mask;
+        this.timestamps[i] = timestamp;
+        int base = i * AXES;
+        for (int axis = 0; axis < AXES; axis++) {
+            this.axes[base + axis] = axis < count ? values[offset + axis] : 0f;
+        }
+        return seq;
+    }
+
+    /**
+     * The maximum number of samples that can be kept
+     *
+     * @return The capacity of the buffer
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * The number of samples that can currently be read
+     *
+     * @return The number of samples in the buffer
+     */
+    public int size() {
+        return (int) Math.min(this.next, this.capacity());
+    }
+
+    /**
+     * The sequence number of the oldest sample still in the buffer
+     *
+     * @return The sequence number, equal to {@link #next()} if the buffer is empty
+     */
+    public long first() {
+        return this.next - this.size();
+    }
+
+    /**
+     * The sequence number the next added sample will get
+     *
+     * @return The sequence number
+     */
+    public long next() {
+        return this.next;
+    }
+
+    /**
+     * Check if the sample with the given sequence number can still be read
+     *
+     * @param seq The sequence number
+     * @return {@code true} if it is still in the buffer, {@code false} otherwise
+     */
+    public boolean contains(long seq) {
+        return seq >= this.first() && seq < this.next;
+    }
+
+    /**
+     * The timestamp of a sample
+     *
+     * @param seq The sequence number of the sample. Must be in the buffer
+     * @return The timestamp
+     */
+    public long timestamp(long seq) {
+        return this.timestamps[(int) seq & this.mask];
+    }
+
+    /**
+     * A single axis reading of a sample
+     *
+     * @param seq  The sequence number of the sample. Must be in the buffer
+     * @param axis The axis, 0 to {@link #AXES} - 1
+     * @return The reading
+     */
+    public float axis(long seq, int axis) {
+        return this.axes[((int) seq & this.mask) * AXES + axis];
+    }
+
+    /**
+     * Calculate the square sum of all axes of a sample
+     *
+     * @param seq The sequence number of the sample. Must be in the buffer
+     * @return The square sum of the readings
+     */
+    public float squareSum(long seq) {
+        int base = ((int) seq & this.mask) * AXES;
+        float ret = 0f;
+        for (int axis = 0; axis < AXES; axis++) {
+            float v = this.axes[base + axis];
+            ret += v * v;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring of taps in shared memory that any number of clients can read without talking to the
+ * service
+ * <p/>
+ * The service writes every tap and retraction into a mapped file with a {@link Writer} and hands
+ * out a read only descriptor of it, clients map it as well and poll it with a {@link Reader}. Both
+ * sides see the same pages. Readers never block the writer, it does not even know about them.
+ * <p/>
+ * The file is deleted right after it has been opened, only the descriptors and the mappings keep
+ * it alive. Unlike {@link android.os.MemoryFile}, whose descriptor is hidden before API 27 and
+ * reports a size of 0 to the mapping, this only takes public APIs on all releases.
+ * <p/>
+ * The region starts with a header of a version, the number of taps written so far and the
+ * capacity, followed by a slot per tap. The version is odd while the writer changes the region, a
+ * reader that sees it change tries again.
+ * <p/>
+ * Nothing orders the writes of the service against the reads of another process, the version is
+ * only a hint. Each slot therefore carries a check value over the number of its tap and its
+ * content. A reader only takes a slot whose check value matches the tap it expects, a slot that has
+ * not arrived yet, is half written or already holds a later tap ends the read.
+ */
+public class SharedTapRing {
+
+    private static final int OFFSET_VERSION = 0;
+    private static final int OFFSET_COUNT = 8;
+    private static final int OFFSET_CAPACITY = 16;
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_SIZE = 16;
+    private static final int SLOT_OFFSET_SIDE = 8;
+    private static final int SLOT_OFFSET_RETRACTION = 9;
+    private static final int SLOT_OFFSET_CHECK = 12;
+    private static final DeviceSide SIDES[] = DeviceSide.values();
+    /**
+     * The number of times a reader looks at a region the writer is changing before it gives up
+     */
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    private SharedTapRing() {
+    }
+
+    /**
+     * The size of a region holding a number of taps
+     *
+     * @param capacity The number of taps
+     * @return The size in bytes
+     */
+    public static int sizeFor(int capacity) {
+        return HEADER_SIZE + capacity * SLOT_SIZE;
+    }
+
+    /**
+     * The check value of a slot
+     * <p/>
+     * Mixes in the number of the tap, so a slot still holding an earlier tap does not match. An
+     * all zero slot does not match the first tap either.
+     */
+    private static int check(long number, long timestamp, int side, boolean retraction) {
+        long h = (number + 1) * 0x9E3779B97F4A7C15L ^ timestamp;
+        h = h * 0x9E3779B97F4A7C15L ^ (side << 1 | (retraction ? 1 : 0));
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Create a ring in a new file and map it for writing
+     *
+     * @param file     The file to create, it is deleted again before this returns. Should be in
+     *                 private storage of the app, e.g. its cache directory
+     * @param capacity The number of taps the ring holds
+     * @return The writer, it can hand out descriptors with {@link Writer#share()}
+     * @throws IOException If the file could not be created or mapped
+     */
+    public static Writer create(File file, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(sizeFor(capacity));
+            ByteBuffer region = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeFor(capacity));
+            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            return new Writer(region, capacity, pfd);
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Map a region shared with {@link Writer#share()} read only
+     * <p/>
+     * The mapping stays valid after the descriptor has been closed.
+     *
+     * @param pfd The descriptor
+     * @return A reader starting at the oldest tap still in the ring
+     * @throws IOException If the region could not be mapped
+     */
+    public static Reader map(ParcelFileDescriptor pfd) throws IOException {
+        FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            throw new IOException("size: " + channel.size());
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        int capacity = header.getInt(OFFSET_CAPACITY);
+        if (capacity <= 0 || channel.size() < sizeFor(capacity)) {
+            throw new IOException("capacity: " + capacity);
+        }
+        return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, sizeFor(capacity)));
+    }
+
+    /**
+     * Writes taps into a region, must only be used from one thread
+     */
+    public static class Writer {
+        private final ByteBuffer region;
+        private final int capacity;
+        /**
+         * The read only descriptor of the file behind the region, {@code null} if there is none
+         */
+        private final ParcelFileDescriptor descriptor;
+        private long version;
+        private long count;
+
+        /**
+         * Create a new writer and initialize the header of the region
+         *
+         * @param region   The region. Must be at least {@link #sizeFor(int)} bytes long
+         * @param capacity The number of taps the ring holds
+         */
+        public Writer(ByteBuffer region, int capacity) {
+            this(region, capacity, null);
+        }
+
+        private Writer(ByteBuffer region, int capacity, ParcelFileDescriptor descriptor) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity: " + capacity);
+            }
+            if (region.capacity() < sizeFor(capacity)) {
+                throw new IllegalArgumentException("length: " + region.capacity());
+            }
+            this.region = region;
+            this.capacity = capacity;
+            this.descriptor = descriptor;
+            this.region.putLong(OFFSET_VERSION, 0);
+            this.region.putLong(OFFSET_COUNT, 0);
+            this.region.putInt(OFFSET_CAPACITY, capacity);
+        }
+
+        /**
+         * Add a tap or the retraction of a tap, overwriting the oldest one if the ring is full
+         *
+         * @param timestamp  The timestamp of the tap
+         * @param side       The side of the tap
+         * @param retraction {@code true} if the tap has been retracted
+         */
+        public void offer(long timestamp, DeviceSide side, boolean retraction) {
+            this.region.putLong(OFFSET_VERSION, ++this.version);
+
+            int offset = HEADER_SIZE + (int) (this.count % this.capacity) * SLOT_SIZE;
+            this.region.putLong(offset, timestamp);
+            this.region.put(offset + SLOT_OFFSET_SIDE, (byte) side.ordinal());
+            this.region.put(offset + SLOT_OFFSET_RETRACTION, (byte) (retraction ? 1 : 0));
+            this.region.putInt(offset + SLOT_OFFSET_CHECK, check(this.count, timestamp, side.ordinal(), retraction));
+            this.region.putLong(OFFSET_COUNT, ++this.count);
+
+            this.region.putLong(OFFSET_VERSION, ++this.version);
+        }
+
+        /**
+         * Duplicate the read only descriptor of the region to hand it to a client
+         *
+         * @return A new descriptor the caller has to close
+         * @throws IOException           If the descriptor could not be duplicated
+         * @throws IllegalStateException If the writer has not been created with
+         *                               {@link #create(File, int)} or has been closed
+         */
+        public ParcelFileDescriptor share() throws IOException {
+            if (null == this.descriptor) {
+                throw new IllegalStateException("Not shared");
+            }
+            return this.descriptor.dup();
+        }
+
+        /**
+         * Close the descriptor of the region, clients keep their mappings
+         */
+        public void close() throws IOException {
+            if (null != this.descriptor) {
+                this.descriptor.close();
+            }
+        }
+
+        /**
+         * The number of taps written so far
+         */
+        public long getCount() {
+            return this.count;
+        }
+    }
+
+    /**
+     * Reads taps from a mapped region, must only be used from one thread
+     * <p/>
+     * The reader keeps a cursor, the number of the next tap to read. Taps that have been
+     * overwritten before they were read are skipped and counted, see {@link #getMissedCount()}.
+     */
+    public static class Reader {
+        private final ByteBuffer region;
+        private final int capacity;
+        private long cursor;
+        private long missed;
+
+        /**
+         * Create a new reader
+         *
+         * @param region The region, starting with the header. Reading starts at the oldest tap
+         *               still in it
+         */
+        public Reader(ByteBuffer region) {
+            this.region = region;
+            this.capacity = region.getInt(OFFSET_CAPACITY);
+            if (this.capacity <= 0 || region.capacity() < sizeFor(this.capacity)) {
+                throw new IllegalArgumentException("capacity: " + this.capacity);
+            }
+            this.cursor = Math.max(0, region.getLong(OFFSET_COUNT) - this.capacity);
+        }
+
+        /**
+         * Read the taps written since the last read
+         * <p/>
+         * Neither allocates nor blocks the writer. While the writer changes the region the read is
+         * retried a limited number of times, then nothing is read. So a writer that died while it
+         * changed the region, leaving it changing for good, cannot hang the reader.
+         * <p/>
+         * Only taps whose slots are complete are read, taps that are still on their way to this
+         * process are read by a later call.
+         *
+         * @param timestamps  Receives the timestamps
+         * @param sides       Receives the sides
+         * @param retractions Receives whether the taps have been retracted
+         * @return The number of taps read, at most the length of the arrays
+         */
+        public int read(long timestamps[], DeviceSide sides[], boolean retractions[]) {
+            int max = Math.min(timestamps.length, Math.min(sides.length, retractions.length));
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                long version = this.region.getLong(OFFSET_VERSION);
+                if (0 != (version & 1)) {
+                    Thread.yield();
+                    continue;
+                }
+                long count = this.region.getLong(OFFSET_COUNT);
+                long from = Math.max(this.cursor, count - this.capacity);
+                int n = (int) Math.max(0, Math.min(count - from, max));
+                int i = 0;
+                while (i < n && this.readSlot(from + i, i, timestamps, sides, retractions)) {
+                    i++;
+                }
+                if (this.region.getLong(OFFSET_VERSION) == version) {
+                    this.missed += from - this.cursor;
+                    this.cursor = from + i;
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Read a slot if it holds the expected tap
+         *
+         * @return {@code false} if the slot holds anything else
+         */
+        private boolean readSlot(long number, int i, long timestamps[], DeviceSide sides[], boolean retractions[]) {
+            int offset = HEADER_SIZE + (int) (number % this.capacity) * SLOT_SIZE;
+            long timestamp = this.region.getLong(offset);
+            int side = this.region.get(offset + SLOT_OFFSET_SIDE);
+            boolean retraction = 0 != this.region.get(offset + SLOT_OFFSET_RETRACTION);
+            if (side < 0 || side >= SIDES.length
+                    || check(number, timestamp, side, retraction) != this.region.getInt(offset + SLOT_OFFSET_CHECK)) {
+                return false;
+            }
+            timestamps[i] = timestamp;
+            sides[i] = SIDES[side];
+            retractions[i] = retraction;
+            return true;
+        }
+
+        /**
+         * The number of the next tap to read, equal to the number of taps read or skipped
+         */
+        public long getCursor() {
+            return this.cursor;
+        }
+
+        /**
+         * The number of taps that have been overwritten before they could be read
+         */
+        public long getMissedCount() {
+            return this.missed;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Guesses the side of the device a tap hit
+ * <p/>
+ * The side is derived from the axis with the largest reading of the tap. A tap pushes the device
+ * away from the side it hits, so a negative reading on the z axis, which points out of the screen,
+ * is a tap on the {@link DeviceSide#FRONT}. If no axis clearly dominates the side is
+ * {@link DeviceSide#ANY}.
+ */
+public class SideStage extends TapStage {
+
+    private static final DeviceSide NEGATIVE_SIDES[] = {DeviceSide.RIGHT, DeviceSide.TOP, DeviceSide.FRONT};
+    private static final DeviceSide POSITIVE_SIDES[] = {DeviceSide.LEFT, DeviceSide.BOTTOM, DeviceSide.BACK};
+
+    private final float dominance;
+
+    /**
+     * Create a new side stage
+     *
+     * @param dominance The share of the square sum of a tap the largest axis must have for the
+     *                  side to be decided, between 0 and 1
+     */
+    public SideStage(float dominance) {
+        if (dominance < 0 || dominance > 1) {
+            throw new IllegalArgumentException("dominance: " + dominance);
+        }
+        this.dominance = dominance;
+    }
+
+    @Override
+    public void process(TapFrame frame) {
+        if (TapFrame.READING != frame.kind) {
+            int largest = 0;
+            float squareSum = 0f;
+            for (int axis = 0; axis < SampleRingBuffer.AXES; axis++) {
+                float v = frame.axes[axis];
+                squareSum += v * v;
+                if (Math.abs(v) > Math.abs(frame.axes[largest])) {
+                    largest = axis;
+                }
+            }
+            float v = frame.axes[largest];
+            if (squareSum > 0 && v * v >= this.dominance * squareSum) {
+                frame.side = v < 0 ? NEGATIVE_SIDES[largest] : POSITIVE_SIDES[largest];
+            } else {
+                frame.side = DeviceSide.ANY;
+            }
+        }
+        this.emit(frame);
+    }
+}
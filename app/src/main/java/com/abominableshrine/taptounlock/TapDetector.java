@@ -16,96 +16,130 @@
 
 package com.abominableshrine.taptounlock;
 
-import android.hardware.Sensor;
-import android.hardware.SensorManager;
-
-import java.util.List;
-
 /**
  * Detects Taps based on sensor readings
  * <p/>
  * This will work with the Linear Acceleration readings to detect taps. A reading will be considered
- * a tap if it is larger than all reading following it for a certain window and if it is above a
- * minimum threshold.
+ * a tap if it is larger than all readings in a time window before and after it and if it is above
+ * a threshold, see {@link PeakStage}.
+ * <p/>
+ * The threshold adapts to the background noise, see {@link NoiseFloorStage}. It is a multiple of
+ * the noise floor but never less than {@link #MIN_TAP_SQUARE_SUM}. This keeps footsteps from being
+ * detected as taps while walking without missing soft taps while the device is lying still.
+ * <p/>
+ * By default a tap is reported once the window after it has passed. In speculative mode, see
+ * {@link #setSpeculative(boolean)}, it is reported as soon as the readings start to fall again and
+ * retracted through {@link ITapDetector.TapObserver#onTapRetracted(long, long, DeviceSide)} if a
+ * larger reading follows within the window.
+ * <p/>
+ * This is the stock {@link TapPipeline} of a {@link MagnitudeStage}, a {@link NoiseFloorStage} and
+ * a {@link PeakStage}.
  */
-public class TapDetector extends BaseTapDetector {
+public class TapDetector extends TapPipeline {
 
     public static final int MIN_TAP_SQUARE_SUM = 45;
-    private static final int LOCAL_MAX_WINDOW_SIZE = 25;
     /**
-     * How many taps we still have to look at to determine if this is a real max
+     * The default time in nanoseconds a tap must be larger than all readings before and after it
+     * <p/>
+     * This equals the 25 readings the detector used to look at on a device delivering 200 Hz.
      */
-    private int localMaxWindow;
+    public static final long DEFAULT_PEAK_WINDOW = 125000000L;
     /**
-     * The timestamp of the local max
+     * The default multiple of the noise floor a tap must exceed
      */
-    private long localMaxTimestamp;
+    public static final float DEFAULT_NOISE_FACTOR = 8f;
     /**
-     * The square sum of the local max values
+     * The default weight of a new reading in the noise floor, about the last 50 readings count
      */
-    private float localMaxSquareSum;
+    public static final float DEFAULT_NOISE_SMOOTHING = 0.02f;
+    private final NoiseFloorStage noiseFloor;
+    private final PeakStage peaks;
 
     public TapDetector() {
-        super();
-        this.resetLocalMax();
+        this(new NoiseFloorStage(MIN_TAP_SQUARE_SUM, DEFAULT_NOISE_FACTOR, DEFAULT_NOISE_SMOOTHING),
+                new PeakStage(DEFAULT_PEAK_WINDOW));
+    }
+
+    private TapDetector(NoiseFloorStage noiseFloor, PeakStage peaks) {
+        super(new MagnitudeStage(), noiseFloor, peaks);
+        this.noiseFloor = noiseFloor;
+        this.peaks = peaks;
+    }
+
+    /**
+     * @see PeakStage#setPeakWindow(long)
+     */
+    public void setPeakWindow(long nanos) {
+        this.peaks.setPeakWindow(nanos);
     }
 
-    private void resetLocalMax() {
-        this.localMaxWindow = LOCAL_MAX_WINDOW_SIZE;
-        this.localMaxTimestamp = 0;
-        this.localMaxSquareSum = Float.NEGATIVE_INFINITY;
+    /**
+     * @see PeakStage#getPeakWindow()
+     */
+    public long getPeakWindow() {
+        return this.peaks.getPeakWindow();
     }
 
     /**
-     * Calculate the square sum of the array
+     * Report taps as soon as the readings fall after a peak above the threshold
+     * <p/>
+     * This saves the time of a peak window for every tap, but observers must handle
+     * {@link ITapDetector.TapObserver#onTapRetracted(long, long, DeviceSide)} for taps that turn out
+     * to be followed by a larger reading.
      *
-     * @param values The sensor readings
-     * @return The square sum of readings
+     * @param speculative {@code true} to report taps early, {@code false} to report them once
+     *                    they are confirmed
+     */
+    public void setSpeculative(boolean speculative) {
+        this.peaks.setSpeculative(speculative);
+    }
+
+    /**
+     * @see PeakStage#isSpeculative()
+     */
+    public boolean isSpeculative() {
+        return this.peaks.isSpeculative();
+    }
+
+    /**
+     * @see NoiseFloorStage#setNoiseFactor(float)
      */
-    private float squareSum(float values[]) {
-        float ret = 0f;
-        for (float v : values) {
-            ret += v * v;
-        }
-        return ret;
+    public void setNoiseFactor(float factor) {
+        this.noiseFloor.setNoiseFactor(factor);
     }
 
-    @Override
-    public void onSensorChanged(long timestamp, int senorType, int accuracy, float values[]) {
-        if (Sensor.TYPE_LINEAR_ACCELERATION != senorType) {
-            return;
-        }
+    /**
+     * @see NoiseFloorStage#getNoiseFactor()
+     */
+    public float getNoiseFactor() {
+        return this.noiseFloor.getNoiseFactor();
+    }
 
-        float squareSum = this.squareSum(values);
-        if (squareSum > this.localMaxSquareSum) {
-            this.localMaxSquareSum = squareSum;
-            this.localMaxTimestamp = timestamp;
-            this.localMaxWindow = LOCAL_MAX_WINDOW_SIZE;
-        } else {
-            this.localMaxWindow--;
-            if (this.localMaxWindow == 0) {
-                if (this.localMaxSquareSum > MIN_TAP_SQUARE_SUM) {
-                    this.notifyObservers(this.localMaxTimestamp, timestamp, DeviceSide.ANY);
-                }
-                this.resetLocalMax();
-            }
-        }
+    /**
+     * @see NoiseFloorStage#setNoiseSmoothing(float)
+     */
+    public void setNoiseSmoothing(float smoothing) {
+        this.noiseFloor.setNoiseSmoothing(smoothing);
     }
 
-    @Override
-    public void onAccuracyChanged(int sensorType, int i) {
+    /**
+     * @see NoiseFloorStage#getNoiseSmoothing()
+     */
+    public float getNoiseSmoothing() {
+        return this.noiseFloor.getNoiseSmoothing();
     }
 
-    @Override
-    public void subscribeToSensors(SensorManager sensorManager) {
-        List<Sensor> sensors = sensorManager.getSensorList(Sensor.TYPE_LINEAR_ACCELERATION);
-        for (Sensor s : sensors) {
-            sensorManager.registerListener(this, s, SensorManager.SENSOR_DELAY_FASTEST);
-        }
+    /**
+     * @see NoiseFloorStage#getNoiseFloor()
+     */
+    public float getNoiseFloor() {
+        return this.noiseFloor.getNoiseFloor();
     }
 
-    @Override
-    public void unsubscribeFromSensors(SensorManager sensorManager) {
-        sensorManager.unregisterListener(this);
+    /**
+     * @see NoiseFloorStage#getThreshold()
+     */
+    public float getThreshold() {
+        return this.noiseFloor.getThreshold();
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * The data passed between the stages of a {@link TapPipeline}
+ * <p/>
+ * Frames are allocated once and reused for every reading, stages fill in and read the fields
+ * relevant to them. Stages must not keep a reference to a frame passed to them.
+ */
+public class TapFrame {
+
+    /**
+     * The frame holds a sensor reading
+     */
+    public static final int READING = 0;
+    /**
+     * The frame holds a detected tap, the axes are the readings of the tap
+     */
+    public static final int TAP = 1;
+    /**
+     * The frame holds a tap that has been reported before and turned out to be none
+     */
+    public static final int RETRACTION = 2;
+
+    /**
+     * One of {@link #READING}, {@link #TAP} or {@link #RETRACTION}
+     */
+    public int kind;
+    /**
+     * The timestamp of the reading or tap
+     */
+    public long timestamp;
+    /**
+     * The timestamp of the reading currently being processed
+     */
+    public long now;
+    /**
+     * The readings of all axes
+     */
+    public final float axes[] = new float[SampleRingBuffer.AXES];
+    /**
+     * The magnitude of the readings, see {@link MagnitudeStage}
+     */
+    public float magnitude;
+    /**
+     * The magnitude a reading must exceed to be a tap
+     */
+    public float threshold;
+    /**
+     * The side a tap has been detected on
+     */
+    public DeviceSide side;
+
+    /**
+     * Copy all fields of another frame into this one
+     *
+     * @param other The frame to copy
+     */
+    public void set(TapFrame other) {
+        this.kind = other.kind;
+        this.timestamp = other.timestamp;
+        this.now = other.now;
+        System.arraycopy(other.axes, 0, this.axes, 0, SampleRingBuffer.AXES);
+        this.magnitude = other.magnitude;
+        this.threshold = other.threshold;
+        this.side = other.side;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * Bounded history of the most recent taps
+ * <p/>
+ * Taps are kept in preallocated primitive ring buffers. Once the history is full, or a tap is
+ * older than the maximum age compared to the newest tap, the oldest taps are dropped, so the
+ * history never grows beyond its capacity no matter how long it is used. Adding and evicting
+ * taps is O(1). As the age is only checked against new taps, users that ask for taps when none
+ * may have been added for a while drop the old ones with {@link #evictOlderThan(long)} first.
+ * <p/>
+ * Taps are addressed by their index, 0 being the oldest tap still in the history. As taps are
+ * added in the order they happened the timestamps are sorted, so taps in a time window can be
+ * found with a binary search, see {@link #indexOf(long)}.
+ * <p/>
+ * Every tap also gets a sequence number when it is added. Sequence numbers increase by one for
+ * every added tap and are never reused, not even for taps that are removed again, so they can be
+ * used as a cursor to find the taps added since, see {@link #indexOfSeq(long)}.
+ */
+public class TapHistory {
+
+    private static final DeviceSide SIDES[] = DeviceSide.values();
+
+    private final long timestamps[];
+    private final byte sides[];
+    private final long seqs[];
+    private final int mask;
+    private long maxAge;
+    /**
+     * Position of the oldest tap in the ring buffers
+     */
+    private long head;
+    /**
+     * Position the next tap will take in the ring buffers
+     */
+    private long tail;
+    /**
+     * Sequence number the next tap will get
+     */
+    private long nextSeq;
+
+    /**
+     * Create a new history
+     *
+     * @param capacity The minimum number of taps to keep. Will be rounded up to the next power of
+     *                 two
+     * @param maxAge   See {@link #setMaxAge(long)}
+     */
+    public TapHistory(int capacity, long maxAge) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.sides = new byte[size];
+        this.seqs = new long[size];
+        this.setMaxAge(maxAge);
+        this.head = 0;
+        this.tail = 0;
+    }
+
+    /**
+     * Set how much older than the newest tap a tap may get before it is dropped
+     *
+     * @param nanos The maximum age in nanoseconds
+     */
+    public void setMaxAge(long nanos) {
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("nanos: " + nanos);
+        }
+        this.maxAge = nanos;
+    }
+
+    /**
+     * Get how much older than the newest tap a tap may get before it is dropped
+     *
+     * @return The maximum age in nanoseconds
+     */
+    public long getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * The maximum number of taps kept
+     *
+     * @return The capacity
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * The number of taps currently kept
+     *
+     * @return The number of taps
+     */
+    public int size() {
+        return (int) (this.tail - this.head);
+    }
+
+    /**
+     * Add a tap to the end of the history and drop taps that are too old
+     *
+     * @param timestamp The timestamp of the tap, must not be older than the last tap
+     * @param side      The side of the tap
+     */
+    public void add(long timestamp, DeviceSide side) {
+        if (this.size() == this.capacity()) {
+            this.head++;
+        }
+        int i = (int) this.tail & this.mask;
+        this.timestamps[i] = timestamp;
+        this.sides[i] = (byte) side.ordinal();
+        this.seqs[i] = this.nextSeq++;
+        this.tail++;
+        this.evictOlderThan(timestamp - this.maxAge);
+    }
+
+    /**
+     * Drop all taps older than the given time
+     *
+     * @param timestamp The timestamp of the oldest tap to keep
+     */
+    public void evictOlderThan(long timestamp) {
+        while (this.head < this.tail && this.timestamps[(int) this.head & this.mask] < timestamp) {
+            this.head++;
+        }
+    }
+
+    /**
+     * Remove the newest tap with the given timestamp
+     * <p/>
+     * This is meant for taps that turned out to be none shortly after they were added, taps after
+     * the removed one are moved, so it is fast for recent taps only.
+     *
+     * @param timestamp The timestamp of the tap to remove
+     * @return {@code true} if a tap has been removed, {@code false} if there is none with the
+     * timestamp
+     */
+    public boolean remove(long timestamp) {
+        for (long seq = this.tail - 1; seq >= this.head; seq--) {
+            if (this.timestamps[(int) seq & this.mask] == timestamp) {
+                for (; seq < this.tail - 1; seq++) {
+                    int to = (int) seq & this.mask;
+                    int from = (int) (seq + 1) & this.mask;
+                    this.timestamps[to] = this.timestamps[from];
+                    this.sides[to] = this.sides[from];
+                    this.seqs[to] = this.seqs[from];
+                }
+                this.tail--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the first tap at or after a time
+     * <p/>
+     * The taps from {@code indexOf(from)} up to but excluding {@code indexOf(to + 1)} are the
+     * taps between {@code from} and {@code to}.
+     *
+     * @param timestamp The time to look for
+     * @return The index of the oldest tap not older than {@code timestamp}, {@link #size()} if
+     * there is none
+     */
+    public int indexOf(long timestamp) {
+        int low = 0;
+        int high = this.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.timestamps[(int) (this.head + mid) & this.mask] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the first tap added at or after a sequence number
+     * <p/>
+     * The taps from {@code indexOfSeq(seq)} up to {@link #size()} are the taps added since the
+     * tap with {@code seq}, as far as they are still kept.
+     *
+     * @param seq The sequence number to look for
+     * @return The index of the oldest tap with a sequence number not less than {@code seq},
+     * {@link #size()} if there is none
+     */
+    public int indexOfSeq(long seq) {
+        int low = 0;
+        int high = this.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.seqs[(int) (this.head + mid) & this.mask] < seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The sequence number the next added tap will get
+     *
+     * @return The sequence number
+     */
+    public long nextSeq() {
+        return this.nextSeq;
+    }
+
+    /**
+     * Remove all taps
+     */
+    public void clear() {
+        this.head = this.tail;
+    }
+
+    /**
+     * The timestamp of a tap
+     *
+     * @param i The index of the tap, 0 is the oldest
+     * @return The timestamp
+     */
+    public long getTimestamp(int i) {
+        return this.timestamps[this.slot(i)];
+    }
+
+    /**
+     * The sequence number of a tap
+     *
+     * @param i The index of the tap, 0 is the oldest
+     * @return The sequence number
+     */
+    public long getSeq(int i) {
+        return this.seqs[this.slot(i)];
+    }
+
+    /**
+     * The side of a tap
+     *
+     * @param i The index of the tap, 0 is the oldest
+     * @return The side
+     */
+    public DeviceSide getSide(int i) {
+        return SIDES[this.sides[this.slot(i)]];
+    }
+
+    private int slot(int i) {
+        if (i < 0 || i >= this.size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + i + ", size is " + this.size());
+        }
+        return (int) (this.head + i) & this.mask;
+    }
+
+    /**
+     * A window of consecutive taps of a history, read directly from the history
+     * <p/>
+     * The window does not copy the taps, it is only valid until the history is changed. A window
+     * can be moved with {@link #set(TapHistory, int, int)}, so one instance can be reused to look
+     * at many windows without allocating. The first tap of a window has no pause, even if it is
+     * not the oldest tap of the history.
+     */
+    public static class Window implements ITapPattern {
+        private TapHistory history;
+        private int start;
+        private int size;
+
+        /**
+         * Create an empty window, see {@link #set(TapHistory, int, int)}
+         */
+        public Window() {
+            this.history = null;
+            this.start = 0;
+            this.size = 0;
+        }
+
+        /**
+         * Look at other taps
+         *
+         * @param history The history
+         * @param start   The index of the first tap in the history
+         * @param size    The number of taps
+         * @return The same window for call chaining
+         */
+        public Window set(TapHistory history, int start, int size) {
+            if (start < 0 || size < 0 || start + size > history.size()) {
+                throw new IndexOutOfBoundsException("Invalid window " + start + "+" + size + ", size is " + history.size());
+            }
+            this.history = history;
+            this.start = start;
+            this.size = size;
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public long duration() {
+            if (this.size < 2) {
+                return 0;
+            }
+            return this.history.getTimestamp(this.start + this.size - 1) - this.history.getTimestamp(this.start);
+        }
+
+        @Override
+        public DeviceSide getSide(int i) {
+            this.checkIndex(i);
+            return this.history.getSide(this.start + i);
+        }
+
+        @Override
+        public long getPause(int i) {
+            this.checkIndex(i);
+            if (0 == i) {
+                return 0;
+            }
+            return this.history.getTimestamp(this.start + i) - this.history.getTimestamp(this.start + i - 1);
+        }
+
+        private void checkIndex(int i) {
+            if (i < 0 || i >= this.size) {
+                throw new IndexOutOfBoundsException("Invalid index " + i + ", size is " + this.size);
+            }
+        }
+    }
+}
@@ -17,8 +17,11 @@
 package com.abominableshrine.taptounlock;
 
 import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Describing a tap pattern
@@ -31,49 +34,122 @@ import java.util.ArrayList;
  * <p/>
  * This class can be easily sent via Messenger to remote services as it provides convenient methods
  * to be bundled and extracted from a bundle. See {@link #toBundle()} and
- * {@link #TapPattern(android.os.Bundle)}
+ * {@link #TapPattern(android.os.Bundle)}. Pauses are 64 bit nanoseconds, in a bundle they are
+ * compressed to the variable length difference to the previous pause. Patterns are also
+ * {@link Parcelable} for the {@link ITapPatternDetector} binder interface, a parcel holds the raw
+ * arrays.
+ * <p/>
+ * Sides and pauses are kept in primitive arrays and the duration and hash code are cached, so
+ * comparing patterns does not allocate. Patterns should be created with a {@link Builder} or
+ * {@link #withTap(DeviceSide, long)} and then be treated as immutable, so they can be shared and
+ * used as keys. The deprecated {@link #appendTap(DeviceSide, long)} still changes a pattern in
+ * place for existing callers.
  */
-public class TapPattern {
+public class TapPattern implements ITapPattern, Parcelable {
 
+    /**
+     * Key of the side ordinals of patterns bundled by earlier versions
+     */
     final private static String KEY_SIDES = "sides";
+    /**
+     * Key of the int pauses of patterns bundled by earlier versions
+     */
     final private static String KEY_PAUSES = "pauses";
+    /**
+     * Key of the encoded pattern, see {@link #encode()}
+     */
+    final private static String KEY_TAPS = "taps";
     /**
      * The percentage the comparison duration may differ from the this duration
      * <p/>
-     * The target duration must be within (1 - MAX_DURATION_TOLERANCE) * this.duration() and
-     * (1 + MAX_DURATION_TOLERANCE) * this.duration
+     * The target duration must be within (100 - MAX_DURATION_TOLERANCE) / 100 * this.duration()
+     * and (100 + MAX_DURATION_TOLERANCE) / 100 * this.duration()
+     */
+    private static final long MAX_DURATION_TOLERANCE = 30;
+    /**
+     * Same as {@link #MAX_DURATION_TOLERANCE} but for the individual pauses in the pattern, after
+     * the pattern has been scaled to the target duration
      */
-    private static final float MAX_DURATION_TOLERANCE = 0.3f;
+    private static final long MAX_TAP_POSITION_TOLERANCE = 20;
     /**
-     * Same as {@link #MAX_DURATION_TOLERANCE} but for the position of individual taps in the
-     * pattern
+     * The bits used for the fraction of the duration a pause takes in {@link Bounds}
      */
-    private static final float MAX_TAP_POSITION_TOLERANCE = 0.2f;
+    private static final int BOUNDS_PRECISION = 30;
+    /**
+     * The sides by their ordinal, {@link DeviceSide#values()} copies the array on every call
+     */
+    private static final DeviceSide SIDES[] = DeviceSide.values();
+    private static final byte NO_SIDES[] = new byte[0];
+    private static final long NO_PAUSES[] = new long[0];
 
-    private ArrayList<DeviceSide> sides;
-    private ArrayList<Integer> pauses;
+    /**
+     * The ordinals of the sides of the taps, only the first {@link #size} are used
+     */
+    private byte sides[];
+    /**
+     * The pauses before every tap but the first, only the first {@link #size} - 1 are used
+     */
+    private long pauses[];
+    private int size;
+    private long duration;
+    /**
+     * The cached hash code, 0 if it has not been calculated yet
+     */
+    private int hash;
+    /**
+     * The tolerance bounds used by the matches methods, null if they have not been compiled yet
+     */
+    private Bounds bounds;
 
     /**
      * Create an empty tap pattern
      */
     public TapPattern() {
-        this.sides = new ArrayList<>();
-        this.pauses = new ArrayList<>();
+        this(NO_SIDES, NO_PAUSES, 0, 0);
     }
 
+    public static final Parcelable.Creator<TapPattern> CREATOR = new Parcelable.Creator<TapPattern>() {
+        @Override
+        public TapPattern createFromParcel(Parcel source) {
+            int size = source.readInt();
+            byte sides[] = source.createByteArray();
+            if (size < 0 || null == sides || sides.length != size) {
+                throw new IllegalArgumentException("Invalid pattern size " + size);
+            }
+            long pauses[] = new long[Math.max(0, size - 1)];
+            for (int i = 0; i < pauses.length; i++) {
+                pauses[i] = source.readLong();
+            }
+            return new TapPattern(sides, pauses, size, checkedDuration(sides, pauses));
+        }
+
+        @Override
+        public TapPattern[] newArray(int size) {
+            return new TapPattern[size];
+        }
+    };
+
     /**
      * Create a tap pattern from a Bundle
      *
      * @param b The bundle to create the pattern from
+     * @throws IllegalArgumentException If the bundle holds no valid pattern
      */
     public TapPattern(Bundle b) {
-        this();
+        this(fromBundle(b));
+    }
 
-        this.pauses = b.getIntegerArrayList(TapPattern.KEY_PAUSES);
-        int sides[] = b.getIntArray(TapPattern.KEY_SIDES);
-        for (int side : sides) {
-            this.sides.add(DeviceSide.values()[side]);
-        }
+    private TapPattern(TapPattern p) {
+        this(p.sides, p.pauses, p.size, p.duration);
+    }
+
+    private TapPattern(byte sides[], long pauses[], int size, long duration) {
+        this.sides = sides;
+        this.pauses = pauses;
+        this.size = size;
+        this.duration = duration;
+        this.hash = 0;
+        this.bounds = null;
     }
 
     @Override
@@ -83,46 +159,99 @@ public class TapPattern {
 
         TapPattern that = (TapPattern) o;
 
-        if (!pauses.equals(that.pauses)) return false;
-        if (!sides.equals(that.sides)) return false;
+        if (size != that.size) return false;
+        if (duration != that.duration) return false;
+        if (hash != 0 && that.hash != 0 && hash != that.hash) return false;
+        for (int i = 0; i < size; i++) {
+            if (sides[i] != that.sides[i]) return false;
+        }
+        for (int i = 0; i < size - 1; i++) {
+            if (pauses[i] != that.pauses[i]) return false;
+        }
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        int result = sides.hashCode();
-        result = 31 * result + pauses.hashCode();
-        return result;
+        if (0 == hash) {
+            int result = size;
+            for (int i = 0; i < size; i++) {
+                result = 31 * result + sides[i];
+            }
+            for (int i = 0; i < size - 1; i++) {
+                result = 31 * result + (int) (pauses[i] ^ (pauses[i] >>> 32));
+            }
+            hash = result;
+        }
+        return hash;
     }
 
     /**
      * Add a new tap to the end of the pattern
      * <p/>
-     * The pause will be ignored for the first tap in the pattern
+     * The pause will be ignored for the first tap in the pattern. This changes the pattern in place,
+     * so it must not be used on a pattern that has been shared or used as a key.
      *
      * @param where          Where the device has been tapped
-     * @param pauseBeforeTap Pause before this tap in milliseconds
-     * @return The same pattern for call chaining
+     * @param pauseBeforeTap Pause before this tap in nanoseconds
+     * @return This pattern for call chaining or null if the pause is not positive
+     * @deprecated Use a {@link Builder} or {@link #withTap(DeviceSide, long)}
      */
-    public TapPattern appendTap(DeviceSide where, int pauseBeforeTap) {
-        if (this.size() != 0) {
+    @Deprecated
+    public TapPattern appendTap(DeviceSide where, long pauseBeforeTap) {
+        if (this.size != 0) {
             if (pauseBeforeTap <= 0) {
                 return null;
             }
-            this.pauses.add(pauseBeforeTap);
+            if (this.pauses.length < this.size) {
+                this.pauses = Arrays.copyOf(this.pauses, 2 * this.size);
+            }
+            this.pauses[this.size - 1] = pauseBeforeTap;
+            this.duration += pauseBeforeTap;
+        }
+        if (this.sides.length <= this.size) {
+            this.sides = Arrays.copyOf(this.sides, Math.max(4, 2 * this.size));
         }
-        this.sides.add(where);
+        this.sides[this.size++] = (byte) where.ordinal();
+        this.hash = 0;
+        this.bounds = null;
         return this;
     }
 
+    /**
+     * Create a pattern with a new tap added to the end of this one
+     * <p/>
+     * The pause will be ignored for the first tap in the pattern. This pattern is not changed, so
+     * this copies the whole pattern for every tap, use a {@link Builder} for longer patterns.
+     *
+     * @param where          Where the device has been tapped
+     * @param pauseBeforeTap Pause before this tap in nanoseconds
+     * @return The new pattern for call chaining or null if the pause is not positive
+     */
+    public TapPattern withTap(DeviceSide where, long pauseBeforeTap) {
+        long pauses[] = Arrays.copyOf(this.pauses, this.size);
+        long duration = this.duration;
+        if (this.size != 0) {
+            if (pauseBeforeTap <= 0) {
+                return null;
+            }
+            pauses[this.size - 1] = pauseBeforeTap;
+            duration += pauseBeforeTap;
+        }
+        byte sides[] = Arrays.copyOf(this.sides, this.size + 1);
+        sides[this.size] = (byte) where.ordinal();
+        return new TapPattern(sides, pauses, this.size + 1, duration);
+    }
+
     /**
      * The number of taps in the pattern
      *
      * @return The number of taps in the pattern
      */
+    @Override
     public int size() {
-        return this.sides.size();
+        return this.size;
     }
 
     /**
@@ -130,12 +259,9 @@ public class TapPattern {
      *
      * @return The duration in nanoseconds
      */
+    @Override
     public long duration() {
-        long totalPause = 0;
-        for (long pause : this.pauses) {
-            totalPause += pause;
-        }
-        return totalPause;
+        return this.duration;
     }
 
     /**
@@ -144,14 +270,209 @@ public class TapPattern {
      * @return The bundle representation of the tap pattern
      */
     public Bundle toBundle() {
+        return toBundle(this);
+    }
+
+    /**
+     * Convert any tap pattern to a bundle that can be sent via a Message
+     * <p/>
+     * This is the only copy needed to send the taps of a {@link TapHistory.Window} to another
+     * process, the bundle can be read with {@link #TapPattern(android.os.Bundle)}.
+     *
+     * @param p The pattern
+     * @return The bundle representation of the tap pattern
+     */
+    public static Bundle toBundle(ITapPattern p) {
         Bundle b = new Bundle();
-        int sides[] = new int[this.sides.size()];
+        b.putByteArray(TapPattern.KEY_TAPS, encode(p));
+        return b;
+    }
+
+    /**
+     * Copy any tap pattern
+     *
+     * @param p The pattern to copy, like a {@link TapHistory.Window}
+     * @return A new pattern with the same taps
+     */
+    public static TapPattern copyOf(ITapPattern p) {
+        int size = p.size();
+        byte sides[] = new byte[size];
+        long pauses[] = new long[Math.max(0, size - 1)];
+        for (int i = 0; i < size; i++) {
+            sides[i] = (byte) p.getSide(i).ordinal();
+        }
+        for (int i = 0; i < pauses.length; i++) {
+            pauses[i] = p.getPause(i + 1);
+        }
+        return new TapPattern(sides, pauses, size, p.duration());
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(this.size);
+        dest.writeByteArray(this.sides, 0, this.size);
+        for (int i = 0; i < this.size - 1; i++) {
+            dest.writeLong(this.pauses[i]);
+        }
+    }
+
+    /**
+     * Encode the pattern into a compact byte array
+     * <p/>
+     * The array holds the number of taps as a varint, the side ordinals of all taps, one byte
+     * each, and the difference of every pause to the one before it as a zigzag varint. Tap
+     * patterns tend to have pauses of similar lengths, so most of them take few bytes.
+     *
+     * @return The encoded pattern
+     */
+    byte[] encode() {
+        return encode(this);
+    }
+
+    private static byte[] encode(ITapPattern p) {
+        int size = p.size();
+        // A size varint takes at most 5 bytes, a pause difference at most 10
+        byte buffer[] = new byte[5 + size + 10 * Math.max(0, size - 1)];
+        int pos = writeVarint(buffer, 0, size);
+        for (int i = 0; i < size; i++) {
+            buffer[pos++] = (byte) p.getSide(i).ordinal();
+        }
+        long previous = 0;
+        for (int i = 1; i < size; i++) {
+            long pause = p.getPause(i);
+            long delta = pause - previous;
+            pos = writeVarint(buffer, pos, (delta << 1) ^ (delta >> 63));
+            previous = pause;
+        }
+        return Arrays.copyOf(buffer, pos);
+    }
+
+    /**
+     * Read a pattern from a bundle of {@link #toBundle()} or one of earlier versions
+     *
+     * @param b The bundle
+     * @return The pattern
+     * @throws IllegalArgumentException If the bundle holds no valid pattern
+     */
+    private static TapPattern fromBundle(Bundle b) {
+        byte taps[] = b.getByteArray(TapPattern.KEY_TAPS);
+        if (null != taps) {
+            return decode(taps);
+        }
+
+        int legacySides[] = b.getIntArray(TapPattern.KEY_SIDES);
+        ArrayList<Integer> legacyPauses = b.getIntegerArrayList(TapPattern.KEY_PAUSES);
+        if (null == legacySides) {
+            throw new IllegalArgumentException("Bundle holds no pattern");
+        }
+        byte sides[] = new byte[legacySides.length];
+        long pauses[] = new long[Math.max(0, legacySides.length - 1)];
+        if (pauses.length > 0 && (null == legacyPauses || legacyPauses.size() < pauses.length)) {
+            throw new IllegalArgumentException("Missing pauses for " + sides.length + " taps");
+        }
         for (int i = 0; i < sides.length; i++) {
-            sides[i] = this.sides.get(i).ordinal();
+            if (legacySides[i] < 0 || legacySides[i] >= SIDES.length) {
+                throw new IllegalArgumentException("Invalid side " + legacySides[i]);
+            }
+            sides[i] = (byte) legacySides[i];
         }
-        b.putIntArray(TapPattern.KEY_SIDES, sides);
-        b.putIntegerArrayList(TapPattern.KEY_PAUSES, this.pauses);
-        return b;
+        for (int i = 0; i < pauses.length; i++) {
+            Integer pause = legacyPauses.get(i);
+            if (null == pause) {
+                throw new IllegalArgumentException("Missing pause " + i);
+            }
+            pauses[i] = pause;
+        }
+        return new TapPattern(sides, pauses, sides.length, checkedDuration(sides, pauses));
+    }
+
+    /**
+     * Read a pattern written by {@link #encode()}
+     *
+     * @param taps The encoded pattern
+     * @return The pattern
+     * @throws IllegalArgumentException If the encoding is broken
+     */
+    private static TapPattern decode(byte taps[]) {
+        int pos[] = {0};
+        long size = readVarint(taps, pos);
+        if (size < 0 || size > taps.length) {
+            throw new IllegalArgumentException("Invalid pattern size " + size);
+        }
+        if (pos[0] + size > taps.length) {
+            throw new IllegalArgumentException("Truncated pattern");
+        }
+        byte sides[] = Arrays.copyOfRange(taps, pos[0], pos[0] + (int) size);
+        pos[0] += sides.length;
+        long pauses[] = new long[Math.max(0, sides.length - 1)];
+        long previous = 0;
+        for (int i = 0; i < pauses.length; i++) {
+            long zigzag = readVarint(taps, pos);
+            pauses[i] = previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+            previous = pauses[i];
+        }
+        return new TapPattern(sides, pauses, sides.length, checkedDuration(sides, pauses));
+    }
+
+    /**
+     * Check the taps of a pattern that has been read from outside and sum up its pauses
+     *
+     * @param sides  The side ordinals of the taps
+     * @param pauses The pauses before every tap but the first
+     * @return The duration of the pattern
+     * @throws IllegalArgumentException If a side is unknown, a pause is not positive or the
+     *                                  duration does not fit into a long
+     */
+    private static long checkedDuration(byte sides[], long pauses[]) {
+        for (int i = 0; i < sides.length; i++) {
+            if (sides[i] < 0 || sides[i] >= SIDES.length) {
+                throw new IllegalArgumentException("Invalid side " + sides[i]);
+            }
+        }
+        long duration = 0;
+        for (int i = 0; i < pauses.length; i++) {
+            if (pauses[i] <= 0 || duration > Long.MAX_VALUE - pauses[i]) {
+                throw new IllegalArgumentException("Invalid pause " + pauses[i]);
+            }
+            duration += pauses[i];
+        }
+        return duration;
+    }
+
+    private static int writeVarint(byte buffer[], int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Read a varint
+     *
+     * @param buffer The buffer to read from
+     * @param pos    Holds the position to read at, will be advanced past the varint
+     * @return The value
+     */
+    private static long readVarint(byte buffer[], int pos[]) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= buffer.length) {
+                throw new IllegalArgumentException("Truncated pattern");
+            }
+            byte b = buffer[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
     }
 
     /**
@@ -161,61 +482,72 @@ public class TapPattern {
      * in a certain tolerance and {@link DeviceSide#ANY}
      * is being handled correctly.
      *
-     * @param p The pattern to compare this against
+     * @param p The pattern to compare this against, any implementation like a window of the
+     *          {@link TapHistory}
      * @return True if they are similar to each other; false otherwise
      */
-    public boolean matches(TapPattern p) {
+    public boolean matches(ITapPattern p) {
         if (null == p) {
             return false;
         }
-        if (this.equals(p)) {
-            return true;
-        }
-        if (this.size() != p.size()) {
+        if (this.size != p.size()) {
             return false;
         }
 
-        for (int i = 0; i < this.size(); i++) {
-            boolean isSameSide = this.sides.get(i) == p.sides.get(i);
-            if (!isSameSide) {
-                boolean isAnySide = this.sides.get(i) == DeviceSide.ANY || p.sides.get(i) == DeviceSide.ANY;
-                if (!isAnySide) {
-                    return false;
-                }
+        final byte any = (byte) DeviceSide.ANY.ordinal();
+        for (int i = 0; i < this.size; i++) {
+            byte side = (byte) p.getSide(i).ordinal();
+            if (this.sides[i] != side && this.sides[i] != any && side != any) {
+                return false;
             }
         }
+        if (this.size < 2) {
+            return true;
+        }
 
-        float timeScale = ((float) p.duration()) / this.duration();
-        if (Math.abs(timeScale - 1f) > MAX_DURATION_TOLERANCE) {
+        Bounds b = this.getBounds();
+        long duration = p.duration() >> b.shift;
+        if (!b.isDurationAllowed(duration)) {
             return false;
         }
-        for (int i = 0; i < this.pauses.size(); i++) {
-            float scaledTime = (this.pauses.get(i) * timeScale);
-            float tapScale = ((float) p.pauses.get(i) / scaledTime);
-            if (Math.abs(tapScale - 1f) > MAX_TAP_POSITION_TOLERANCE) {
+        for (int i = 0; i < this.size - 1; i++) {
+            if (!b.isPauseAllowed(i, p.getPause(i + 1) >> b.shift, duration)) {
                 return false;
             }
         }
         return true;
     }
 
+    private Bounds getBounds() {
+        Bounds b = this.bounds;
+        if (null == b) {
+            b = new Bounds(this.pauses, this.size - 1, this.duration);
+            this.bounds = b;
+        }
+        return b;
+    }
+
     /**
      * Return the device side of a tap in the pattern
      *
      * @param i The index of the tap
      * @return The device side
      */
+    @Override
     public DeviceSide getSide(int i) {
-        return this.sides.get(i);
+        if (i < 0 || i >= this.size) {
+            throw new IndexOutOfBoundsException("Invalid index " + i + ", size is " + this.size);
+        }
+        return SIDES[this.sides[i]];
     }
 
     @Override
     public String toString() {
-        String ret = "TapPattern{";
-        for(int i = 0; i < this.size(); i++) {
-            ret += " " + this.getPause(i) + ":" + this.getSide(i);
+        StringBuilder ret = new StringBuilder("TapPattern{");
+        for (int i = 0; i < this.size(); i++) {
+            ret.append(' ').append(this.getPause(i)).append(':').append(this.getSide(i));
         }
-        return ret + " }";
+        return ret.append(" }").toString();
     }
 
     /**
@@ -224,6 +556,7 @@ public class TapPattern {
      * @param i The index of the tap
      * @return The pause or 0 if it is the first tap
      */
+    @Override
     public long getPause(int i) {
         // Input validation through getSide()
         @SuppressWarnings("UnusedDeclaration") DeviceSide s = this.getSide(i);
@@ -232,6 +565,157 @@ public class TapPattern {
         if (index < 0) {
             return 0;
         }
-        return this.pauses.get(index);
+        return this.pauses[index];
+    }
+
+    /**
+     * Builds tap patterns tap by tap
+     * <p/>
+     * A builder can be reused with {@link #reset()}, it only allocates when it has to grow and when
+     * a pattern is built.
+     */
+    public static class Builder {
+
+        private byte sides[];
+        private long pauses[];
+        private int size;
+        private long duration;
+
+        /**
+         * Create a new builder for patterns of about 16 taps
+         */
+        public Builder() {
+            this(16);
+        }
+
+        /**
+         * Create a new builder
+         *
+         * @param capacity The number of taps the builder can hold before it has to grow
+         */
+        public Builder(int capacity) {
+            this.sides = new byte[Math.max(1, capacity)];
+            this.pauses = new long[Math.max(1, capacity)];
+            this.size = 0;
+            this.duration = 0;
+        }
+
+        /**
+         * Add a new tap to the end of the pattern
+         *
+         * @param where          Where the device has been tapped
+         * @param pauseBeforeTap Pause before this tap in nanoseconds, ignored for the first tap
+         * @return The same builder for call chaining
+         * @throws IllegalArgumentException If the pause is not positive
+         */
+        public Builder appendTap(DeviceSide where, long pauseBeforeTap) {
+            if (this.size != 0) {
+                if (pauseBeforeTap <= 0) {
+                    throw new IllegalArgumentException("pauseBeforeTap: " + pauseBeforeTap);
+                }
+                if (this.pauses.length < this.size) {
+                    this.pauses = Arrays.copyOf(this.pauses, 2 * this.size);
+                }
+                this.pauses[this.size - 1] = pauseBeforeTap;
+                this.duration += pauseBeforeTap;
+            }
+            if (this.sides.length == this.size) {
+                this.sides = Arrays.copyOf(this.sides, 2 * this.size);
+            }
+            this.sides[this.size++] = (byte) where.ordinal();
+            return this;
+        }
+
+        /**
+         * The number of taps added so far
+         *
+         * @return The number of taps
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Remove all taps to start a new pattern
+         *
+         * @return The same builder for call chaining
+         */
+        public Builder reset() {
+            this.size = 0;
+            this.duration = 0;
+            return this;
+        }
+
+        /**
+         * Create a pattern of the taps added so far
+         *
+         * @return The new pattern
+         */
+        public TapPattern build() {
+            return new TapPattern(Arrays.copyOf(this.sides, this.size),
+                    Arrays.copyOf(this.pauses, Math.max(0, this.size - 1)), this.size, this.duration);
+        }
+    }
+
+    /**
+     * The tolerances of {@link TapPattern#matches(ITapPattern)} compiled to integer bounds
+     * <p/>
+     * A pause {@code p} of a target with duration {@code D} matches the pause {@code r} of a
+     * pattern with duration {@code R}, if {@code p / (r * D / R)} differs from 1 by at most
+     * {@link #MAX_TAP_POSITION_TOLERANCE} percent. The fraction {@code r / R} only depends on the
+     * pattern, so it is stored in fixed point rounded down for the lower and up for the upper bound,
+     * leaving a comparison of two products per pause. So the products can not overflow for any
+     * target within the duration tolerance, times are cut to the 25 most significant bits of the
+     * pattern duration before they are compared.
+     */
+    private static final class Bounds {
+        /**
+         * The number of bits times are shifted right by before they are compared
+         */
+        final int shift;
+        final long minDuration;
+        final long maxDuration;
+        final long minPauses[];
+        final long maxPauses[];
+
+        Bounds(long pauses[], int count, long duration) {
+            int bits = 64 - Long.numberOfLeadingZeros(duration);
+            // (100 + MAX_TAP_POSITION_TOLERANCE) * 2^BOUNDS_PRECISION times the longest allowed
+            // target duration, less than 2^(bits + 1), must fit into 63 bits
+            this.shift = Math.max(0, bits - (55 - BOUNDS_PRECISION));
+
+            long d = duration >> this.shift;
+            this.minDuration = (100 - MAX_DURATION_TOLERANCE) * d;
+            this.maxDuration = (100 + MAX_DURATION_TOLERANCE) * d;
+            this.minPauses = new long[count];
+            this.maxPauses = new long[count];
+            for (int i = 0; i < count; i++) {
+                long scaled = (pauses[i] >> this.shift) << BOUNDS_PRECISION;
+                long fraction = scaled / d;
+                long ceil = fraction * d < scaled ? fraction + 1 : fraction;
+                this.minPauses[i] = (100 - MAX_TAP_POSITION_TOLERANCE) * fraction;
+                this.maxPauses[i] = (100 + MAX_TAP_POSITION_TOLERANCE) * ceil;
+            }
+        }
+
+        boolean isDurationAllowed(long duration) {
+            // Checked first so the multiplication can not overflow
+            if (duration > this.maxDuration) {
+                return false;
+            }
+            long scaled = 100 * duration;
+            return scaled >= this.minDuration && scaled <= this.maxDuration;
+        }
+
+        /**
+         * Must only be called for durations accepted by {@link #isDurationAllowed(long)}
+         */
+        boolean isPauseAllowed(int i, long pause, long duration) {
+            if (pause > duration) {
+                return false;
+            }
+            long scaled = (100 * pause) << BOUNDS_PRECISION;
+            return scaled >= this.minPauses[i] * duration && scaled <= this.maxPauses[i] * duration;
+        }
     }
 }
@@ -18,21 +18,37 @@ package com.abominableshrine.taptounlock;
 
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
+import java.io.IOException;
+
 /**
  * Helper class to communicate with the TapPatternDetectorService
  * <p/>
  * This class intends to provide simple interfaces for clients without going through the hassle of
  * Messaging.
+ * <p/>
+ * If the binder is the {@link ITapPatternDetector} interface, see
+ * {@link TapPatternDetectorService#ACTION_BIND_DETECTOR}, the client uses its typed calls instead of
+ * messages. If the service runs in the same process the client calls it directly, no matter how it
+ * has been bound, see {@link TapPatternDetectorService#getLocalDetector(IBinder)}. Either way the
+ * callbacks are called on the thread that created the client.
  */
 public abstract class TapPatternDetectorClient {
 
     private IBinder binder;
     private Messenger txMessenger;
     private Messenger rxMessenger;
+    private Handler rxHandler;
+    /**
+     * The typed interface of the service, {@code null} if it talks through Messengers
+     */
+    private ITapPatternDetector detector;
+    private ITapPatternListener listener;
 
     /**
      * Create a new TapPatternDetectorClient to connect to the Service at the other end of the
@@ -41,12 +57,43 @@ public abstract class TapPatternDetectorClient {
      * @param binder The binder to use for the messaging
      */
     public TapPatternDetectorClient(IBinder binder) {
+        this(binder, true);
+    }
+
+    /**
+     * Create a new client that may be kept from calling a service in the same process directly
+     *
+     * @param binder           The binder to use for the messaging
+     * @param useLocalDetector Whether to call a service in the same process directly, tests turn
+     *                         this off to use the protocol of the binder even in the same process
+     */
+    TapPatternDetectorClient(IBinder binder, boolean useLocalDetector) {
         if(null == binder) {
             throw new IllegalArgumentException();
         }
         this.binder = binder;
-        this.rxMessenger = new Messenger(new TapPatternMsgHandler());
-        this.txMessenger = new Messenger(binder);
+        this.rxHandler = new TapPatternMsgHandler();
+        ITapPatternDetector local = useLocalDetector ? TapPatternDetectorService.getLocalDetector(binder) : null;
+        if (null != local) {
+            this.detector = local;
+            this.listener = new TapPatternListener();
+        } else if (isDetectorBinder(binder)) {
+            this.detector = ITapPatternDetector.Stub.asInterface(binder);
+            this.listener = new TapPatternListener();
+        } else {
+            this.rxMessenger = new Messenger(this.rxHandler);
+            this.txMessenger = new Messenger(binder);
+        }
+    }
+
+    private static boolean isDetectorBinder(IBinder binder) {
+        try {
+            // The descriptor of an AIDL interface is its class name
+            return ITapPatternDetector.class.getName().equals(binder.getInterfaceDescriptor());
+        } catch (RemoteException e) {
+            // The service is dead, sending will fail either way
+            return false;
+        }
     }
 
     /**
@@ -63,6 +110,38 @@ public abstract class TapPatternDetectorClient {
      */
     public abstract void onPatternMatch(TapPattern pattern);
 
+    /**
+     * Callback for the taps requested with {@link #requestTapsSince(long)}
+     *
+     * @param taps     The taps with timestamps in the clock of
+     *                 {@link android.os.SystemClock#elapsedRealtimeNanos()}, none of them retracted
+     * @param firstSeq The sequence number of the first tap. Greater than the requested one if
+     *                 taps have been dropped from the history of the service or retracted in
+     *                 between
+     * @param nextSeq  The sequence number to request next
+     */
+    public void onTapsSince(TapStream.Batch taps, long firstSeq, long nextSeq) {
+    }
+
+    /**
+     * Callback for streamed taps, see {@link #subscribeTaps(int)}
+     *
+     * @param timestamp The time of the tap in the clock of
+     *                  {@link android.os.SystemClock#elapsedRealtimeNanos()}
+     * @param side      The side of the tap
+     */
+    public void onTap(long timestamp, DeviceSide side) {
+    }
+
+    /**
+     * Callback for streamed taps that turned out to be none, see {@link #subscribeTaps(int)}
+     *
+     * @param timestamp The time of the tap given to {@link #onTap(long, DeviceSide)}
+     * @param side      The side of the tap
+     */
+    public void onTapRetracted(long timestamp, DeviceSide side) {
+    }
+
     /**
      * Request the recent taps detected in the given time span
      * <p/>
@@ -76,6 +155,13 @@ public abstract class TapPatternDetectorClient {
      * @param toTime   End of the time span in nanoseconds from now. Must be less than 0
      */
     public void requestRecentTaps(long fromTime, long toTime) throws IllegalArgumentException, RemoteException {
+        if (null != this.detector) {
+            if (fromTime >= toTime || toTime >= 0) {
+                throw new IllegalArgumentException("fromTime: " + fromTime + " toTime: " + toTime);
+            }
+            this.detector.requestRecentTaps(fromTime, toTime, this.listener);
+            return;
+        }
         Message m = TapPatternDetectorService.createRecentTapsRequestMsg(this.rxMessenger, fromTime, toTime);
         if(null == m) {
             throw new IllegalArgumentException("fromTime: " + fromTime + " toTime: " + toTime);
@@ -83,6 +169,28 @@ public abstract class TapPatternDetectorClient {
         this.txMessenger.send(m);
     }
 
+    /**
+     * Request the taps the service added since a sequence number
+     * <p/>
+     * Start with 0 and continue with the next sequence number passed to
+     * {@link #onTapsSince(TapStream.Batch, long, long)} to get every tap exactly once. Unlike
+     * {@link #requestRecentTaps(long, long)} no tap is fetched twice or missed at the edge of a
+     * time span, and a lost response is made up for by the next request.
+     *
+     * @param seq The sequence number of the first tap to get. Must not be negative
+     */
+    public void requestTapsSince(long seq) throws IllegalArgumentException, RemoteException {
+        if (seq < 0) {
+            throw new IllegalArgumentException("seq: " + seq);
+        }
+
+        if (null != this.detector) {
+            this.detector.requestTapsSince(seq, this.listener);
+            return;
+        }
+        this.txMessenger.send(TapPatternDetectorService.createTapsSinceRequestMsg(this.rxMessenger, seq));
+    }
+
     /**
      * Subscribe to a certain tap pattern
      *
@@ -96,6 +204,10 @@ public abstract class TapPatternDetectorClient {
             throw new IllegalArgumentException();
         }
 
+        if (null != this.detector) {
+            this.detector.subscribe(pattern, this.listener);
+            return;
+        }
         Message m = TapPatternDetectorService.createSubscribeMsg(this.rxMessenger, pattern);
         this.txMessenger.send(m);
     }
@@ -105,8 +217,106 @@ public abstract class TapPatternDetectorClient {
      *
      * @param pattern The pattern to unsubscribe from. Must not be <c>null</c> or empty
      */
-    public void unsubscribe(TapPattern pattern) throws IllegalArgumentException {
-        throw new UnsupportedOperationException("Not Implemented");
+    public void unsubscribe(TapPattern pattern) throws IllegalArgumentException, RemoteException {
+        if (null == pattern) {
+            throw new IllegalArgumentException();
+        }
+        if (0 == pattern.size()) {
+            throw new IllegalArgumentException();
+        }
+
+        if (null != this.detector) {
+            this.detector.unsubscribe(pattern, this.listener);
+            return;
+        }
+        Message m = TapPatternDetectorService.createUnsubscribeMsg(this.rxMessenger, pattern);
+        this.txMessenger.send(m);
+    }
+
+    /**
+     * Subscribe to the stream of all taps
+     * <p/>
+     * The service sends taps as they happen to {@link #onTap(long, DeviceSide)}, but never more
+     * than {@code window} taps before the callbacks have returned. If the callbacks fall further
+     * behind the service drops the oldest taps.
+     *
+     * @param window The number of taps that may be on the way to this client. Must be greater
+     *               than 0
+     */
+    public void subscribeTaps(int window) throws IllegalArgumentException, RemoteException {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window: " + window);
+        }
+
+        if (null != this.detector) {
+            this.detector.subscribeTaps(window, this.listener);
+            return;
+        }
+        this.txMessenger.send(TapPatternDetectorService.createTapsSubscribeMsg(this.rxMessenger, window));
+    }
+
+    /**
+     * Unsubscribe from the stream of all taps
+     * <p/>
+     * Taps already on the way are still delivered.
+     */
+    public void unsubscribeTaps() throws RemoteException {
+        if (null != this.detector) {
+            this.detector.unsubscribeTaps(this.listener);
+            return;
+        }
+        this.txMessenger.send(TapPatternDetectorService.createTapsUnsubscribeMsg(this.rxMessenger));
+    }
+
+    /**
+     * Map the taps the service writes to shared memory
+     * <p/>
+     * The returned reader is polled by the client itself, reading costs neither the service nor
+     * a binder call. Only available if the service has been bound with
+     * {@link TapPatternDetectorService#ACTION_BIND_DETECTOR} or runs in the same process.
+     *
+     * @return The reader or {@code null} if the service does not share its taps with this client
+     * @throws IOException If the shared memory could not be mapped
+     */
+    public SharedTapRing.Reader openSharedTaps() throws RemoteException, IOException {
+        if (null == this.detector) {
+            return null;
+        }
+        ParcelFileDescriptor pfd = this.detector.openSharedTaps();
+        if (null == pfd) {
+            return null;
+        }
+        try {
+            return SharedTapRing.map(pfd);
+        } finally {
+            pfd.close();
+        }
+    }
+
+    /**
+     * Pass streamed taps to the callbacks and return the credit for them to the service
+     */
+    private void onTaps(TapStream.Batch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.retractions[i]) {
+                onTapRetracted(batch.timestamps[i], batch.getSide(i));
+            } else {
+                onTap(batch.timestamps[i], batch.getSide(i));
+            }
+        }
+        if (0 == batch.size()) {
+            return;
+        }
+        try {
+            if (null != this.detector) {
+                this.detector.ackTaps(batch.size(), this.listener);
+            } else {
+                this.txMessenger.send(TapPatternDetectorService.createTapsAckMsg(this.rxMessenger, batch.size()));
+            }
+        } catch (RemoteException e) {
+            // The service is gone and with it the stream
+            e.printStackTrace();
+        }
     }
 
     private class TapPatternMsgHandler extends Handler {
@@ -114,10 +324,18 @@ public abstract class TapPatternDetectorClient {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case TapPatternDetectorService.MSG_RESP_RECENT_TAPS:
-                    onRecentTapsResponse(new TapPattern(msg.getData()));
+                    onRecentTapsResponse(getPattern(msg));
                     break;
                 case TapPatternDetectorService.MSG_PUB_PATTERN_MATCH:
-                    onPatternMatch(new TapPattern(msg.getData()));
+                    onPatternMatch(getPattern(msg));
+                    break;
+                case TapPatternDetectorService.MSG_RESP_TAPS_SINCE:
+                    onTapsSince(new TapStream.Batch(msg.getData()),
+                            msg.getData().getLong(TapPatternDetectorService.KEY_FIRST_SEQ),
+                            msg.getData().getLong(TapPatternDetectorService.KEY_NEXT_SEQ));
+                    break;
+                case TapPatternDetectorService.MSG_PUB_TAPS:
+                    onTaps(msg.obj instanceof TapStream.Batch ? (TapStream.Batch) msg.obj : new TapStream.Batch(msg.getData()));
                     break;
                 default:
                     super.handleMessage(msg);
@@ -125,4 +343,61 @@ public abstract class TapPatternDetectorClient {
             }
         }
     }
+
+    /**
+     * The pattern of a message from the service or from {@link TapPatternListener}
+     */
+    private static TapPattern getPattern(Message msg) {
+        if (msg.obj instanceof TapPattern) {
+            return (TapPattern) msg.obj;
+        }
+        return new TapPattern(msg.getData());
+    }
+
+    /**
+     * Receives the callbacks of the typed interface and hands them to {@link TapPatternMsgHandler}
+     * <p/>
+     * Callbacks of a local service on the thread of the client are called right away.
+     */
+    private class TapPatternListener extends ITapPatternListener.Stub {
+        @Override
+        public void onRecentTaps(TapPattern pattern) {
+            if (Looper.myLooper() == rxHandler.getLooper()) {
+                onRecentTapsResponse(pattern);
+                return;
+            }
+            rxHandler.obtainMessage(TapPatternDetectorService.MSG_RESP_RECENT_TAPS, pattern).sendToTarget();
+        }
+
+        @Override
+        public void onPatternMatch(TapPattern pattern) {
+            if (Looper.myLooper() == rxHandler.getLooper()) {
+                TapPatternDetectorClient.this.onPatternMatch(pattern);
+                return;
+            }
+            rxHandler.obtainMessage(TapPatternDetectorService.MSG_PUB_PATTERN_MATCH, pattern).sendToTarget();
+        }
+
+        @Override
+        public void onTapsSince(long firstSeq, long nextSeq, long timestamps[], byte sides[]) {
+            TapStream.Batch taps = new TapStream.Batch(timestamps, sides, new boolean[timestamps.length]);
+            if (Looper.myLooper() == rxHandler.getLooper()) {
+                TapPatternDetectorClient.this.onTapsSince(taps, firstSeq, nextSeq);
+                return;
+            }
+            Message m = rxHandler.obtainMessage(TapPatternDetectorService.MSG_RESP_TAPS_SINCE);
+            m.setData(TapPatternDetectorService.createTapsSinceData(taps, firstSeq, nextSeq));
+            m.sendToTarget();
+        }
+
+        @Override
+        public void onTaps(long timestamps[], byte sides[], boolean retractions[]) {
+            TapStream.Batch batch = new TapStream.Batch(timestamps, sides, retractions);
+            if (Looper.myLooper() == rxHandler.getLooper()) {
+                TapPatternDetectorClient.this.onTaps(batch);
+                return;
+            }
+            rxHandler.obtainMessage(TapPatternDetectorService.MSG_PUB_TAPS, batch).sendToTarget();
+        }
+    }
 }
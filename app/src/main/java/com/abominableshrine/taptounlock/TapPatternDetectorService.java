@@ -20,16 +20,43 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.hardware.SensorManager;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Service that records the taps of an {@link ITapDetector} and notifies clients about them
+ * <p/>
+ * Taps are reported by the detector on its own sensor thread. They are handed over to the main
+ * thread through an {@link AsyncTapObserver}, all other state of the service is only accessed
+ * from the main thread.
+ * <p/>
+ * Clients talk to the service through a {@link Messenger}, or through the typed
+ * {@link ITapPatternDetector} interface if they bind with {@link #ACTION_BIND_DETECTOR}. The latter
+ * passes patterns as parcels instead of bundles and takes the time span of a recent taps request
+ * as plain arguments.
+ * <p/>
+ * Clients in the same process can skip the binder altogether, see
+ * {@link #getLocalDetector(IBinder)}.
+ * <p/>
+ * Besides pattern matches clients can subscribe to a stream of all taps, see {@link TapStream}.
+ * Streamed timestamps are converted to the clock of {@link SystemClock#elapsedRealtimeNanos()}.
+ * Clients of the {@link ITapPatternDetector} interface can also read all taps from shared memory,
+ * see {@link SharedTapRing}.
+ */
 public class TapPatternDetectorService extends Service implements ITapDetector.TapObserver {
 
     /**
@@ -48,20 +75,285 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
      * Command to notify a subscriber a matching pattern has been tapped
      */
     static final int MSG_PUB_PATTERN_MATCH = 4;
+    /**
+     * Command to unsubscribe from a tapping pattern
+     */
+    static final int MSG_UNSUB_PATTERN = 5;
+    /**
+     * Command to subscribe to the stream of all taps, arg1 is the window of the stream
+     */
+    static final int MSG_SUB_TAPS = 6;
+    /**
+     * Command to send streamed taps to a subscriber, see {@link TapStream.Batch}
+     */
+    static final int MSG_PUB_TAPS = 7;
+    /**
+     * Command to acknowledge streamed taps, arg1 is the number of taps
+     */
+    static final int MSG_ACK_TAPS = 8;
+    /**
+     * Command to unsubscribe from the stream of all taps
+     */
+    static final int MSG_UNSUB_TAPS = 9;
+    /**
+     * Command to get the taps added since a sequence number, see {@link TapHistory#nextSeq()}
+     */
+    static final int MSG_REQ_TAPS_SINCE = 10;
+    /**
+     * Command the service sends as a response to the MSG_REQ_TAPS_SINCE command
+     */
+    static final int MSG_RESP_TAPS_SINCE = 11;
     static final String KEY_TAP_DETECTOR_CLASS = "TapDetectorClass";
+    /**
+     * The sequence number of a MSG_REQ_TAPS_SINCE command
+     */
+    static final String KEY_SEQ = "Seq";
+    /**
+     * The sequence number of the first tap of a MSG_RESP_TAPS_SINCE response
+     */
+    static final String KEY_FIRST_SEQ = "FirstSeq";
+    /**
+     * The sequence number to continue with after a MSG_RESP_TAPS_SINCE response
+     */
+    static final String KEY_NEXT_SEQ = "NextSeq";
+    /**
+     * Intent action to bind to the {@link ITapPatternDetector} interface instead of the Messenger
+     */
+    static final String ACTION_BIND_DETECTOR = "com.abominableshrine.taptounlock.BIND_DETECTOR";
+    /**
+     * Intent extra with the maximum sensor report latency in microseconds
+     *
+     * @see ITapDetector#setMaxReportLatency(int)
+     */
+    static final String KEY_MAX_REPORT_LATENCY_US = "MaxReportLatencyUs";
+    /**
+     * The number of taps that can wait to be processed by the main thread
+     */
+    private static final int TAP_QUEUE_SIZE = 64;
+    /**
+     * Intent extra to report taps before they are confirmed, only supported by {@link TapDetector}
+     *
+     * @see TapDetector#setSpeculative(boolean)
+     */
+    static final String KEY_SPECULATIVE_TAPS = "SpeculativeTaps";
+    /**
+     * Handles the messages of clients on the main thread
+     */
+    private final Handler handler = new TapObserverHandler();
     /**
      * Target we publish for clients to send messages to TapDetectorHandler
      */
-    final Messenger mMessenger = new Messenger(new TapObserverHandler());
-    private ArrayList<Long> timestamps;
-    private ArrayList<DeviceSide> sides;
-    private ArrayList<SubscriptionEntry> subscriptions;
+    final Messenger mMessenger = new Messenger(this.handler);
+    /**
+     * The running service, if any, for clients in the same process
+     */
+    private static volatile TapPatternDetectorService localService;
+    /**
+     * Target we publish for clients binding with {@link #ACTION_BIND_DETECTOR}
+     * <p/>
+     * The calls arrive on binder threads and are posted to the main thread. Calls of local clients
+     * on the main thread are handled right away.
+     */
+    private final ITapPatternDetector.Stub detectorBinder = new ITapPatternDetector.Stub() {
+        @Override
+        public void requestRecentTaps(final long fromTime, final long toTime, final ITapPatternListener listener) {
+            if (null == listener || fromTime >= toTime || toTime >= 0) {
+                return;
+            }
+            if (isMainThread()) {
+                sendRecentTaps(fromTime, toTime, listener);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    sendRecentTaps(fromTime, toTime, listener);
+                }
+            });
+        }
+
+        @Override
+        public void requestTapsSince(final long seq, final ITapPatternListener listener) {
+            if (null == listener || seq < 0) {
+                return;
+            }
+            if (isMainThread()) {
+                sendTapsSince(seq, listener);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    sendTapsSince(seq, listener);
+                }
+            });
+        }
+
+        @Override
+        public void subscribe(final TapPattern pattern, final ITapPatternListener listener) {
+            if (null == pattern || null == listener || 0 == pattern.size()) {
+                return;
+            }
+            if (isMainThread()) {
+                addSubscription(new ListenerClient(listener), pattern);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    addSubscription(new ListenerClient(listener), pattern);
+                }
+            });
+        }
+
+        @Override
+        public void unsubscribe(final TapPattern pattern, final ITapPatternListener listener) {
+            if (null == pattern || null == listener) {
+                return;
+            }
+            if (isMainThread()) {
+                removeSubscription(listener.asBinder(), pattern);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    removeSubscription(listener.asBinder(), pattern);
+                }
+            });
+        }
+
+        @Override
+        public ParcelFileDescriptor openSharedTaps() {
+            return shareTaps();
+        }
+
+        @Override
+        public void subscribeTaps(final int window, final ITapPatternListener listener) {
+            if (null == listener || window <= 0) {
+                return;
+            }
+            if (isMainThread()) {
+                addTapStream(new ListenerClient(listener), window);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    addTapStream(new ListenerClient(listener), window);
+                }
+            });
+        }
+
+        @Override
+        public void ackTaps(final int count, final ITapPatternListener listener) {
+            if (null == listener) {
+                return;
+            }
+            if (isMainThread()) {
+                acknowledgeTaps(listener.asBinder(), count);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    acknowledgeTaps(listener.asBinder(), count);
+                }
+            });
+        }
+
+        @Override
+        public void unsubscribeTaps(final ITapPatternListener listener) {
+            if (null == listener) {
+                return;
+            }
+            if (isMainThread()) {
+                removeTapStream(listener.asBinder());
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    removeTapStream(listener.asBinder());
+                }
+            });
+        }
+    };
+    /**
+     * The number of taps kept in the history
+     */
+    private static final int HISTORY_CAPACITY = 256;
+    /**
+     * The time in nanoseconds taps are kept in the history
+     */
+    private static final long HISTORY_MAX_AGE = 5 * 60 * 1000000000L;
+    /**
+     * The difference between the sensor clock and the elapsed realtime clock at which sensor
+     * timestamps are resynchronized even if the measured offset grew
+     */
+    private static final long CLOCK_RESYNC_THRESHOLD = 1000000000L;
+    /**
+     * The number of taps kept in shared memory
+     */
+    private static final int SHARED_TAPS_CAPACITY = 256;
+    /**
+     * The shared memory all taps are written to, {@code null} until the first client opens it
+     * <p/>
+     * Created on a binder thread, written to from the main thread.
+     */
+    private volatile SharedTapRing.Writer sharedTaps;
+    /**
+     * Set if taps cannot be shared on this device or the service has been destroyed
+     */
+    private boolean sharedTapsDisabled;
+    /**
+     * The history of taps by their sensor timestamps
+     */
+    private TapHistory history;
+    /**
+     * {@link SystemClock#elapsedRealtimeNanos()} minus the sensor clock
+     * <p/>
+     * Sensor timestamps do not use the same clock on all devices. The offset is measured whenever
+     * a tap arrives, the smallest measurement is the one with the least delay between the reading
+     * and its processing.
+     */
+    private long sensorClockOffset;
+    private boolean sensorClockOffsetKnown;
+    /**
+     * All subscribed patterns, each one only once no matter how many clients subscribed it
+     */
+    private HashMap<TapPattern, SubscriptionEntry> subscriptions;
+    /**
+     * All clients with subscriptions by their binder, see {@link ClientEntry}
+     */
+    private HashMap<IBinder, ClientEntry> clients;
+    /**
+     * All clients with a {@link TapStream}
+     */
+    private ArrayList<ClientEntry> streamClients;
+    /**
+     * The matchers of all subscriptions, indexed so a tap only visits those it can affect
+     */
+    private PatternIndex<SubscriptionEntry> subscriptionIndex;
+    /**
+     * Receives the subscriptions matched by a tap, reused for every tap
+     */
+    private ArrayList<SubscriptionEntry> matchedSubscriptions;
     private ITapDetector detector;
+    /**
+     * Hands taps reported by the detector over to the main thread
+     */
+    private AsyncTapObserver mainThreadObserver;
+    /**
+     * Reused to look at the recent taps requested by clients
+     */
+    private final TapHistory.Window recentTaps = new TapHistory.Window();
 
     /**
      * Create a new message to request the recent taps detected in the given time span
      * <p/>
-     * The time span is given by the nanoseconds from now, the following invocation will create a
+     * The time span is given by the nanoseconds from now, measured by
+     * {@link android.os.SystemClock#elapsedRealtimeNanos()}. The following invocation will create a
      * message to retrieve all taps that happened 5 seconds until 1 nanosecond ago:
      * <p/>
      * <c>TapPatternDetectorService.createRecentTapsRequestMsg(replyTo, -5000000000L, -1)</c>
@@ -86,6 +378,45 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
         return msg;
     }
 
+    /**
+     * Create a new message to request the taps added since a sequence number
+     * <p/>
+     * Start with 0 and continue with the next sequence number of every response to get every tap
+     * exactly once, as long as the client keeps up with the history of the service.
+     *
+     * @param replyTo The Messenger to reply to. Must not be <c>null</c>
+     * @param seq     The sequence number of the first tap to get. Must not be negative
+     * @return A message or <c>null</c> if the parameters where illegal
+     */
+    static Message createTapsSinceRequestMsg(Messenger replyTo, long seq) {
+        if (null == replyTo || seq < 0) {
+            return null;
+        }
+
+        Message msg = Message.obtain(null, MSG_REQ_TAPS_SINCE);
+        msg.replyTo = replyTo;
+        Bundle b = new Bundle();
+        b.putLong(KEY_SEQ, seq);
+        msg.setData(b);
+        return msg;
+    }
+
+    /**
+     * Create the data of a MSG_RESP_TAPS_SINCE response
+     *
+     * @param taps     The taps
+     * @param firstSeq The sequence number of the first tap. Greater than the requested one if
+     *                 taps have been dropped from the history or retracted in between
+     * @param nextSeq  The sequence number to request next
+     * @return The data
+     */
+    static Bundle createTapsSinceData(TapStream.Batch taps, long firstSeq, long nextSeq) {
+        Bundle b = taps.toBundle();
+        b.putLong(KEY_FIRST_SEQ, firstSeq);
+        b.putLong(KEY_NEXT_SEQ, nextSeq);
+        return b;
+    }
+
     /**
      * Create a new message to subscribe to a certain tap pattern
      *
@@ -115,23 +446,145 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
      * @return A message or <c>null</c> if the parameters where illegal
      */
     static Message createUnsubscribeMsg(Messenger replyTo, TapPattern pattern) {
-        throw new UnsupportedOperationException("Not Implemented");
+        if (null == replyTo || null == pattern) {
+            return null;
+        }
+        if (0 == pattern.size()) {
+            return null;
+        }
+
+        Message msg = Message.obtain(null, MSG_UNSUB_PATTERN);
+        msg.replyTo = replyTo;
+        msg.setData(pattern.toBundle());
+        return msg;
+    }
+
+    /**
+     * Create a new message to subscribe to the stream of all taps
+     *
+     * @param replyTo The Messenger to reply to. Must not be <c>null</c>
+     * @param window  The number of taps the client may have received without acknowledging them.
+     *                Must be greater than 0
+     * @return A message or <c>null</c> if the parameters where illegal
+     */
+    static Message createTapsSubscribeMsg(Messenger replyTo, int window) {
+        if (null == replyTo || window <= 0) {
+            return null;
+        }
+
+        Message msg = Message.obtain(null, MSG_SUB_TAPS, window, 0);
+        msg.replyTo = replyTo;
+        return msg;
+    }
+
+    /**
+     * Create a new message to acknowledge streamed taps
+     *
+     * @param replyTo The Messenger that subscribed the stream. Must not be <c>null</c>
+     * @param count   The number of taps the client has processed
+     * @return A message or <c>null</c> if the parameters where illegal
+     */
+    static Message createTapsAckMsg(Messenger replyTo, int count) {
+        if (null == replyTo || count <= 0) {
+            return null;
+        }
+
+        Message msg = Message.obtain(null, MSG_ACK_TAPS, count, 0);
+        msg.replyTo = replyTo;
+        return msg;
+    }
+
+    /**
+     * Create a new message to unsubscribe from the stream of all taps
+     *
+     * @param replyTo The Messenger that subscribed the stream. Must not be <c>null</c>
+     * @return A message or <c>null</c> if the parameters where illegal
+     */
+    static Message createTapsUnsubscribeMsg(Messenger replyTo) {
+        if (null == replyTo) {
+            return null;
+        }
+
+        Message msg = Message.obtain(null, MSG_UNSUB_TAPS);
+        msg.replyTo = replyTo;
+        return msg;
     }
 
     @Override
     public void onCreate() {
         logI("OnCreate");
         super.onCreate();
-        this.timestamps = new ArrayList<>();
-        this.sides = new ArrayList<>();
-        this.subscriptions = new ArrayList<>();
+        this.history = new TapHistory(HISTORY_CAPACITY, HISTORY_MAX_AGE);
+        this.subscriptions = new HashMap<>();
+        this.clients = new HashMap<>();
+        this.streamClients = new ArrayList<>();
+        this.subscriptionIndex = new PatternIndex<>();
+        this.matchedSubscriptions = new ArrayList<>();
+        this.mainThreadObserver = new AsyncTapObserver(this, new Handler(), TAP_QUEUE_SIZE);
+        localService = this;
+    }
+
+    /**
+     * Get the {@link ITapPatternDetector} of the service if it runs in the same process
+     * <p/>
+     * A client that gets the interface calls the service directly. There are no parcels or bundles
+     * and calls on the main thread are handled right away, patterns are passed as they are and
+     * must not be changed afterwards.
+     *
+     * @param binder The binder the client got from binding to the service, either the Messenger or
+     *               the {@link ITapPatternDetector}
+     * @return The interface or {@code null} if the binder does not belong to a service in this
+     * process
+     */
+    static ITapPatternDetector getLocalDetector(IBinder binder) {
+        TapPatternDetectorService s = localService;
+        if (null == s || null == binder) {
+            return null;
+        }
+        if (binder != s.mMessenger.getBinder() && binder != s.detectorBinder) {
+            return null;
+        }
+        return s.detectorBinder;
+    }
+
+    /**
+     * Handle a client of the service in this process as if it had died
+     * <p/>
+     * A binder in the same process never dies while the process lives, tests use this instead.
+     *
+     * @param binder The binder of the client
+     */
+    static void notifyClientDied(final IBinder binder) {
+        final TapPatternDetectorService s = localService;
+        if (null == s) {
+            return;
+        }
+        s.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                ClientEntry c = s.clients.get(binder);
+                if (null != c) {
+                    c.binderDied();
+                }
+            }
+        });
+    }
+
+    private boolean isMainThread() {
+        return Looper.myLooper() == this.handler.getLooper();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         logI("OnStartCommand");
-        detector = null;
-        if (intent.hasExtra(TapPatternDetectorService.KEY_TAP_DETECTOR_CLASS)) {
+        if (null != detector) {
+            // Started again, the new intent may ask for another detector
+            detector.removeTapObserver(this.mainThreadObserver);
+            detector.unsubscribeFromSensors((SensorManager) getSystemService(Context.SENSOR_SERVICE));
+            detector = null;
+        }
+        // A sticky service restarted after its process was killed gets no intent, use the defaults
+        if (null != intent && intent.hasExtra(TapPatternDetectorService.KEY_TAP_DETECTOR_CLASS)) {
             Class<? extends ITapDetector> detectorClass = (Class<? extends ITapDetector>) intent.getSerializableExtra(TapPatternDetectorService.KEY_TAP_DETECTOR_CLASS);
             logI("Using Detector: " + detectorClass.getName());
             try {
@@ -145,7 +598,11 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
         if (null == detector) {
             detector = new TapDetector();
         }
-        detector.registerTapObserver(this);
+        detector.setMaxReportLatency(null == intent ? 0 : intent.getIntExtra(TapPatternDetectorService.KEY_MAX_REPORT_LATENCY_US, 0));
+        if (detector instanceof TapDetector) {
+            ((TapDetector) detector).setSpeculative(null != intent && intent.getBooleanExtra(TapPatternDetectorService.KEY_SPECULATIVE_TAPS, false));
+        }
+        detector.registerTapObserver(this.mainThreadObserver);
         detector.subscribeToSensors((SensorManager) getSystemService(Context.SENSOR_SERVICE));
 
         return START_STICKY;
@@ -160,63 +617,164 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
     @Override
     public IBinder onBind(Intent intent) {
         logI("OnBind");
+        if (ACTION_BIND_DETECTOR.equals(intent.getAction())) {
+            return this.detectorBinder;
+        }
         return mMessenger.getBinder();
     }
 
+    /**
+     * Record a tap and notify matching subscribers
+     * <p/>
+     * This is called on the main thread through {@link #mainThreadObserver}.
+     */
     @Override
-    public synchronized void onTap(long timestamp, long now, DeviceSide side) {
+    public void onTap(long timestamp, long now, DeviceSide side) {
         logI("OnTap: %s %d %d", side.name(), now, timestamp);
-        this.timestamps.add(timestamp);
-        this.sides.add(side);
+        this.updateSensorClockOffset(now);
+        this.history.add(timestamp, side);
+        logI("History: %d of %d taps", this.history.size(), this.history.capacity());
 
         this.checkSubscriptions();
+        this.streamTap(timestamp + this.sensorClockOffset, side, false);
+        this.shareTap(timestamp + this.sensorClockOffset, side, false);
+    }
+
+    /**
+     * Remove a speculatively reported tap from the history
+     * <p/>
+     * Subscribers that have already been notified about a match including this tap will not be
+     * notified again, acting on speculative taps is a trade of accuracy for latency. This is
+     * called on the main thread through {@link #mainThreadObserver}.
+     */
+    @Override
+    public void onTapRetracted(long timestamp, long now, DeviceSide side) {
+        logI("OnTapRetracted: %s %d %d", side.name(), now, timestamp);
+        if (this.history.remove(timestamp)) {
+            this.subscriptionIndex.reset(this.history);
+        }
+        // Only the last tap is retracted, the offset has not changed since it was streamed
+        this.streamTap(timestamp + this.sensorClockOffset, side, true);
+        this.shareTap(timestamp + this.sensorClockOffset, side, true);
+    }
+
+    private void updateSensorClockOffset(long now) {
+        long offset = SystemClock.elapsedRealtimeNanos() - now;
+        if (!this.sensorClockOffsetKnown || offset < this.sensorClockOffset
+                || offset - this.sensorClockOffset > CLOCK_RESYNC_THRESHOLD) {
+            this.sensorClockOffset = offset;
+            this.sensorClockOffsetKnown = true;
+        }
     }
 
     /**
-     * Checks the list of subscriptions to see if we have a match with the currently recorded taps
+     * Advance the matchers of all subscriptions the most recent tap can affect and notify the
+     * subscribers of matches
      */
     private void checkSubscriptions() {
-        TapPattern p = new TapPattern();
-        for (SubscriptionEntry e : this.subscriptions) {
-            // Determine where whe should start looking for matches based on the length of a
-            // subscription
-            int i = this.timestamps.size() - e.pattern.size();
-            if (i < 0) {
-                continue;
+        this.subscriptionIndex.onTap(this.history, this.matchedSubscriptions);
+        for (int i = 0; i < this.matchedSubscriptions.size(); i++) {
+            SubscriptionEntry e = this.matchedSubscriptions.get(i);
+            logI("Found match: %s", e.pattern.toString());
+            this.notifySubscribers(e);
+        }
+        this.matchedSubscriptions.clear();
+    }
+
+    /**
+     * Notify all subscribers of a pattern about a match
+     * <p/>
+     * All messages carry the same prebuilt data, subscribers must not modify it. Local subscribers
+     * may unsubscribe while they are notified, so the list is walked backwards.
+     *
+     * @param subscription The subscription that got a match
+     */
+    private void notifySubscribers(SubscriptionEntry subscription) {
+        for (int i = subscription.subscribers.size() - 1; i >= 0; i--) {
+            try {
+                subscription.subscribers.get(i).notifyMatch(subscription);
+            } catch (RemoteException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-            // Build the tap pattern starting at i iff the current pattern does not match the size
-            // of the subscription. This optimization helps us to only rebuild the pattern if the
-            // subscription size has changed, and not on any iteration
-            if (e.pattern.size() != p.size()) {
-                p = new TapPattern();
-                for (; i < this.timestamps.size(); i++) {
-                    long pause = 0;
-                    if (i > 0) {
-                        pause = this.timestamps.get(i) - this.timestamps.get(i - 1);
-                    }
-                    p.appendTap(this.sides.get(i), (int) pause);
-                }
+    /**
+     * Add a tap to the streams of all clients and send what they have credit for
+     *
+     * @param timestamp  The timestamp of the tap in the elapsed realtime clock
+     * @param side       The side of the tap
+     * @param retraction {@code true} if the tap has been retracted
+     */
+    private void streamTap(long timestamp, DeviceSide side, boolean retraction) {
+        // Local clients may unsubscribe while they receive the tap
+        for (int i = this.streamClients.size() - 1; i >= 0; i--) {
+            ClientEntry c = this.streamClients.get(i);
+            c.stream.offer(timestamp, side, retraction);
+            this.flushTaps(c);
+        }
+    }
+
+    /**
+     * Write a tap to the shared memory, readers pick it up on their own
+     */
+    private void shareTap(long timestamp, DeviceSide side, boolean retraction) {
+        if (null == this.sharedTaps) {
+            return;
+        }
+        this.sharedTaps.offer(timestamp, side, retraction);
+    }
+
+    /**
+     * Hand out a descriptor of the shared memory, creating it for the first client
+     * <p/>
+     * Until then taps are not written to shared memory at all.
+     *
+     * @return The descriptor or {@code null} if taps cannot be shared
+     */
+    private synchronized ParcelFileDescriptor shareTaps() {
+        if (this.sharedTapsDisabled) {
+            return null;
+        }
+        try {
+            if (null == this.sharedTaps) {
+                File file = File.createTempFile("taps", null, getCacheDir());
+                this.sharedTaps = SharedTapRing.create(file, SHARED_TAPS_CAPACITY);
             }
+            return this.sharedTaps.share();
+        } catch (IOException e) {
+            // Out of storage or descriptors, later clients would not fare better
+            Log.w(TapPatternDetectorService.class.getSimpleName(), "Cannot share taps: " + e);
+            this.disableSharedTaps();
+            return null;
+        }
+    }
 
-            if (e.pattern.matches(p)) {
-                logI("Found match: %s %s %s", e.subscriber.toString(), e.pattern.toString(), p.toString());
-                this.notifySubscriber(e, p);
+    /**
+     * Stop writing taps to shared memory for good, clients keep their mappings
+     */
+    private synchronized void disableSharedTaps() {
+        this.sharedTapsDisabled = true;
+        if (null != this.sharedTaps) {
+            try {
+                this.sharedTaps.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
             }
+            this.sharedTaps = null;
         }
     }
 
     /**
-     * Notify the subscriber about a match for his subscription
-     *
-     * @param subscription The subscription that got a match
-     * @param match        The actual pattern that was matched
+     * Send the waiting taps a client has credit for
      */
-    private void notifySubscriber(SubscriptionEntry subscription, TapPattern match) {
-        Message m = Message.obtain(null, MSG_PUB_PATTERN_MATCH);
-        m.setData(subscription.pattern.toBundle());
+    private void flushTaps(ClientEntry c) {
+        TapStream.Batch b = c.stream.poll();
+        if (null == b) {
+            return;
+        }
         try {
-            subscription.subscriber.send(m);
+            c.sendTaps(b);
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -246,71 +804,353 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
         }
     }
 
-    private synchronized Message handleRecentTapsRequest(Message req) {
+    private Message handleRecentTapsRequest(Message req) {
         try {
             Long timeFrame[] = (Long[]) req.obj;
-            if (timeFrame[0] >= timeFrame[1]) {
+            if (!this.findRecentTaps(timeFrame[0], timeFrame[1])) {
                 return null;
             }
 
-            long now = 1000000L * System.currentTimeMillis();
-            long minTime = now + timeFrame[0];
-            long maxTime = now + timeFrame[1];
-            logI("minTime %d", minTime);
-            logI("maxTime %d", maxTime);
-
-            TapPattern p = new TapPattern();
-            for (int i = 0; i < this.sides.size(); i++) {
-                logI("Tap Timestamp %d", this.timestamps.get(i));
-                boolean notToOld = minTime <= this.timestamps.get(i);
-                boolean notToYoung = this.timestamps.get(i) <= maxTime;
-                if (notToOld && notToYoung) {
-                    long pause = 0;
-                    if (i > 0) {
-                        pause = this.timestamps.get(i) - this.timestamps.get(i - 1);
-                    }
-                    logI("Appending Tap %s %d", this.sides.get(i).name(), pause);
-                    p.appendTap(this.sides.get(i), (int) pause);
-                }
-            }
-
+            // The bundle is the only copy of the taps
             Message reply = Message.obtain(null, MSG_RESP_RECENT_TAPS);
-            reply.setData(p.toBundle());
+            reply.setData(TapPattern.toBundle(this.recentTaps));
             return reply;
         } catch (Exception e) {
             return null;
         }
     }
 
-    private void addSubscription(SubscriptionEntry s) {
-        logI("Adding Subscription %s", s.toString());
-        if (this.subscriptions.contains(s)) {
+    private Message handleTapsSinceRequest(Message req) {
+        if (null == req.replyTo || null == req.getData()) {
+            return null;
+        }
+        long seq = req.getData().getLong(KEY_SEQ, -1);
+        if (seq < 0) {
+            return null;
+        }
+
+        this.evictExpiredTaps();
+        int start = this.history.indexOfSeq(seq);
+        Message reply = Message.obtain(null, MSG_RESP_TAPS_SINCE);
+        reply.setData(createTapsSinceData(this.copyTaps(start), this.firstSeq(start), this.history.nextSeq()));
+        return reply;
+    }
+
+    private void sendTapsSince(long seq, ITapPatternListener listener) {
+        this.evictExpiredTaps();
+        int start = this.history.indexOfSeq(seq);
+        TapStream.Batch b = this.copyTaps(start);
+        try {
+            listener.onTapsSince(this.firstSeq(start), this.history.nextSeq(), b.timestamps, b.sides);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copy the taps of the history from an index on, with timestamps in the elapsed realtime clock
+     */
+    private TapStream.Batch copyTaps(int start) {
+        int n = this.history.size() - start;
+        TapStream.Batch b = new TapStream.Batch(new long[n], new byte[n], new boolean[n]);
+        for (int i = 0; i < n; i++) {
+            b.timestamps[i] = this.history.getTimestamp(start + i) + this.sensorClockOffset;
+            b.sides[i] = (byte) this.history.getSide(start + i).ordinal();
+        }
+        return b;
+    }
+
+    /**
+     * Drop the taps older than {@link #HISTORY_MAX_AGE}
+     * <p/>
+     * Adding a tap only drops taps by the age of the new one, so without this a burst of taps
+     * would stay in the history for good once the device is no longer tapped.
+     */
+    private void evictExpiredTaps() {
+        this.history.evictOlderThan(SystemClock.elapsedRealtimeNanos() - this.sensorClockOffset - HISTORY_MAX_AGE);
+    }
+
+    private long firstSeq(int start) {
+        return start < this.history.size() ? this.history.getSeq(start) : this.history.nextSeq();
+    }
+
+    private void sendRecentTaps(long fromTime, long toTime, ITapPatternListener listener) {
+        if (!this.findRecentTaps(fromTime, toTime)) {
+            return;
+        }
+        try {
+            listener.onRecentTaps(TapPattern.copyOf(this.recentTaps));
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Point {@link #recentTaps} to the taps in a time span
+     *
+     * @param fromTime Beginning of the time span in nanoseconds from now
+     * @param toTime   End of the time span in nanoseconds from now
+     * @return {@code true} if the time span is valid, {@code false} otherwise
+     */
+    private boolean findRecentTaps(long fromTime, long toTime) {
+        if (fromTime >= toTime) {
+            return false;
+        }
+
+        // The time span is relative to the elapsed realtime, taps are in the sensor clock
+        long now = SystemClock.elapsedRealtimeNanos() - this.sensorClockOffset;
+        long minTime = now + fromTime;
+        long maxTime = now + toTime;
+        logI("minTime %d maxTime %d", minTime, maxTime);
+
+        this.evictExpiredTaps();
+        int start = this.history.indexOf(minTime);
+        int end = this.history.indexOf(maxTime + 1);
+        this.recentTaps.set(this.history, start, end - start);
+        return true;
+    }
+
+    /**
+     * Get the entry of a client and start watching it if it is new
+     *
+     * @param client A new entry for the client, only used if there is none yet
+     * @return The entry or {@code null} if the client has already died
+     */
+    private ClientEntry getClient(ClientEntry client) {
+        ClientEntry c = this.clients.get(client.binder);
+        if (null == c) {
+            c = client;
+            try {
+                c.binder.linkToDeath(c, 0);
+            } catch (RemoteException e) {
+                // The client died before it could be notified about anything
+                return null;
+            }
+            this.clients.put(c.binder, c);
+        }
+        return c;
+    }
+
+    /**
+     * Stop watching a client that has neither subscriptions nor a stream left
+     */
+    private void releaseClient(ClientEntry c) {
+        if (c.patterns.isEmpty() && null == c.stream) {
+            this.clients.remove(c.binder);
+            c.binder.unlinkToDeath(c, 0);
+        }
+    }
+
+    private void addSubscription(ClientEntry client, TapPattern pattern) {
+        logI("Adding Subscription %s %s", client.toString(), pattern.toString());
+        ClientEntry c = this.getClient(client);
+        if (null == c || c.patterns.containsKey(pattern)) {
+            return;
+        }
+
+        SubscriptionEntry s = this.subscriptions.get(pattern);
+        if (null == s) {
+            s = new SubscriptionEntry(pattern);
+            // Pick up recent taps, so the next tap can complete a match started before subscribing
+            this.evictExpiredTaps();
+            s.matcher.reset(this.history);
+            this.subscriptions.put(pattern, s);
+            this.subscriptionIndex.add(s.matcher, s);
+        }
+        c.patterns.put(pattern, s.subscribers.size());
+        s.subscribers.add(c);
+    }
+
+    /**
+     * Remove a subscription of a client and stop watching the client if it was the last one
+     *
+     * @param binder  The binder of the client
+     * @param pattern The pattern to unsubscribe from
+     */
+    private void removeSubscription(IBinder binder, TapPattern pattern) {
+        ClientEntry c = this.clients.get(binder);
+        Integer index = null == c ? null : c.patterns.remove(pattern);
+        if (null == index) {
             return;
         }
 
-        this.subscriptions.add(s);
-        Collections.sort(this.subscriptions);
+        this.removeSubscriber(c, pattern, index);
+        this.releaseClient(c);
+    }
+
+    /**
+     * Remove a client from the subscribers of a pattern
+     * <p/>
+     * The last subscriber is moved into the gap, so a client with many patterns does not have to
+     * search and shift every subscriber list when it goes away.
+     *
+     * @param c       The client, its pattern has already been removed
+     * @param pattern The pattern to unsubscribe from
+     * @param index   The position of the client in the subscribers of the pattern
+     */
+    private void removeSubscriber(ClientEntry c, TapPattern pattern, int index) {
+        logI("Removing Subscription %s %s", c.toString(), pattern.toString());
+        SubscriptionEntry s = this.subscriptions.get(pattern);
+        ClientEntry last = s.subscribers.remove(s.subscribers.size() - 1);
+        if (last != c) {
+            s.subscribers.set(index, last);
+            last.patterns.put(pattern, index);
+        }
+        if (s.subscribers.isEmpty()) {
+            this.subscriptions.remove(pattern);
+            this.subscriptionIndex.remove(s);
+        }
     }
 
-    private synchronized Message handlePatternSubscription(Message msg) {
+    /**
+     * Remove all subscriptions of a client and stop watching it
+     *
+     * @param binder The binder of the client
+     */
+    private void removeClient(IBinder binder) {
+        ClientEntry c = this.clients.remove(binder);
+        if (null == c) {
+            return;
+        }
+        binder.unlinkToDeath(c, 0);
+        for (Map.Entry<TapPattern, Integer> e : c.patterns.entrySet()) {
+            this.removeSubscriber(c, e.getKey(), e.getValue());
+        }
+        if (null != c.stream) {
+            this.streamClients.remove(c);
+        }
+    }
+
+    /**
+     * Start streaming all taps to a client
+     * <p/>
+     * Subscribing again starts a new stream with the new window, taps in flight are forgotten.
+     *
+     * @param client A new entry for the client, only used if there is none yet
+     * @param window The number of taps the client may have received without acknowledging them
+     */
+    private void addTapStream(ClientEntry client, int window) {
+        logI("Adding Tap Stream %s %d", client.toString(), window);
+        ClientEntry c = this.getClient(client);
+        if (null == c) {
+            return;
+        }
+        if (null == c.stream) {
+            this.streamClients.add(c);
+        }
+        c.stream = new TapStream(window);
+    }
+
+    /**
+     * Return credit to the stream of a client and send the taps that waited for it
+     *
+     * @param binder The binder of the client
+     * @param count  The number of taps the client has processed
+     */
+    private void acknowledgeTaps(IBinder binder, int count) {
+        ClientEntry c = this.clients.get(binder);
+        if (null == c || null == c.stream) {
+            return;
+        }
+        c.stream.ack(count);
+        this.flushTaps(c);
+    }
+
+    private void removeTapStream(IBinder binder) {
+        ClientEntry c = this.clients.get(binder);
+        if (null == c || null == c.stream) {
+            return;
+        }
+        logI("Removing Tap Stream %s, dropped %d taps", c.toString(), c.stream.getDroppedCount());
+        this.streamClients.remove(c);
+        c.stream = null;
+        this.releaseClient(c);
+    }
+
+    private Message handlePatternSubscription(Message msg) {
+        if (null == msg.replyTo || null == msg.getData()) {
+            return null;
+        }
+
+        TapPattern p = readPattern(msg);
+        if (null == p || 0 == p.size()) {
+            return null;
+        }
+
+        this.addSubscription(new MessengerClient(msg.replyTo), p);
+        return null;
+    }
+
+    private Message handlePatternUnsubscription(Message msg) {
         if (null == msg.replyTo || null == msg.getData()) {
             return null;
         }
 
-        TapPattern p = new TapPattern(msg.getData());
-        if (0 == p.size()) {
+        TapPattern p = readPattern(msg);
+        if (null != p) {
+            this.removeSubscription(msg.replyTo.getBinder(), p);
+        }
+        return null;
+    }
+
+    /**
+     * The pattern bundled into a message of a client
+     *
+     * @return The pattern or null if the client sent a broken one
+     */
+    private static TapPattern readPattern(Message msg) {
+        try {
+            return new TapPattern(msg.getData());
+        } catch (IllegalArgumentException e) {
+            Log.w(TapPatternDetectorService.class.getSimpleName(), "Ignoring invalid pattern: " + e);
+            return null;
+        }
+    }
+
+    private Message handleTapsSubscription(Message msg) {
+        if (null == msg.replyTo || msg.arg1 <= 0) {
+            return null;
+        }
+
+        this.addTapStream(new MessengerClient(msg.replyTo), msg.arg1);
+        return null;
+    }
+
+    private Message handleTapsAck(Message msg) {
+        if (null == msg.replyTo) {
+            return null;
+        }
+
+        this.acknowledgeTaps(msg.replyTo.getBinder(), msg.arg1);
+        return null;
+    }
+
+    private Message handleTapsUnsubscription(Message msg) {
+        if (null == msg.replyTo) {
             return null;
         }
 
-        this.addSubscription(new SubscriptionEntry(msg.replyTo, p));
+        this.removeTapStream(msg.replyTo.getBinder());
         return null;
     }
 
     @Override
     public void onDestroy() {
         logI("OnDestroy");
-        detector.removeTapObserver(this);
+        detector.removeTapObserver(this.mainThreadObserver);
+        if (this.mainThreadObserver.getDroppedCount() > 0) {
+            Log.w(TapPatternDetectorService.class.getSimpleName(), "Dropped taps: " + this.mainThreadObserver.getDroppedCount());
+        }
         detector.unsubscribeFromSensors((SensorManager) getSystemService(Context.SENSOR_SERVICE));
+        for (ClientEntry c : this.clients.values()) {
+            c.binder.unlinkToDeath(c, 0);
+        }
+        this.clients.clear();
+        this.streamClients.clear();
+        this.disableSharedTaps();
+        if (this == localService) {
+            localService = null;
+        }
         super.onDestroy();
     }
 
@@ -330,6 +1170,21 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
                 case MSG_SUB_PATTERN:
                     reply = handlePatternSubscription(msg);
                     break;
+                case MSG_UNSUB_PATTERN:
+                    reply = handlePatternUnsubscription(msg);
+                    break;
+                case MSG_REQ_TAPS_SINCE:
+                    reply = handleTapsSinceRequest(msg);
+                    break;
+                case MSG_SUB_TAPS:
+                    reply = handleTapsSubscription(msg);
+                    break;
+                case MSG_ACK_TAPS:
+                    reply = handleTapsAck(msg);
+                    break;
+                case MSG_UNSUB_TAPS:
+                    reply = handleTapsUnsubscription(msg);
+                    break;
                 default:
                     // If there is no handler, do nothing
                     logI("Dropping Message: %s", msg.toString());
@@ -348,47 +1203,133 @@ public class TapPatternDetectorService extends Service implements ITapDetector.T
     }
 
     /**
-     * A simple tuple of Subscriber and pattern to manage subscriptions
+     * A subscribed pattern and all clients that subscribed it
      */
-    private class SubscriptionEntry implements Comparable<SubscriptionEntry> {
-        public Messenger subscriber;
-        public TapPattern pattern;
+    private class SubscriptionEntry {
+        public final TapPattern pattern;
+        public final PatternMatcher matcher;
+        /**
+         * The data of the match notification, encoded once for all Messenger subscribers
+         * <p/>
+         * Every message gets a copy, a receiver in the same process gets the bundle itself and
+         * may change it.
+         */
+        public final Bundle matchData;
+        public final ArrayList<ClientEntry> subscribers;
 
-        public SubscriptionEntry(Messenger subscriber, TapPattern pattern) {
-            this.subscriber = subscriber;
+        public SubscriptionEntry(TapPattern pattern) {
             this.pattern = pattern;
+            this.matcher = new PatternMatcher(pattern);
+            this.matchData = pattern.toBundle();
+            this.subscribers = new ArrayList<>();
+        }
+    }
+
+    /**
+     * A client with subscriptions, the patterns it subscribed and its tap stream
+     * <p/>
+     * The client is watched for the death of its process, so the subscriptions of clients that
+     * died without unsubscribing are removed instead of failing on every match.
+     */
+    private abstract class ClientEntry implements IBinder.DeathRecipient {
+        public final IBinder binder;
+        /**
+         * The subscribed patterns and the position of the client in their subscribers
+         */
+        public final HashMap<TapPattern, Integer> patterns;
+        /**
+         * The stream of all taps, {@code null} if the client did not subscribe it
+         */
+        public TapStream stream;
+
+        public ClientEntry(IBinder binder) {
+            this.binder = binder;
+            this.patterns = new HashMap<>();
+        }
+
+        /**
+         * Notify the client about a match for one of its subscriptions
+         *
+         * @param subscription The subscription that got a match
+         */
+        public abstract void notifyMatch(SubscriptionEntry subscription) throws RemoteException;
+
+        /**
+         * Send streamed taps to the client
+         *
+         * @param batch The taps
+         */
+        public abstract void sendTaps(TapStream.Batch batch) throws RemoteException;
+
+        @Override
+        public void binderDied() {
+            // Called on a binder thread, the subscriptions belong to the main thread
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    logI("Client died %s", ClientEntry.this.toString());
+                    removeClient(binder);
+                }
+            });
+        }
+    }
+
+    /**
+     * A client that talks to the service through {@link #mMessenger}
+     */
+    private class MessengerClient extends ClientEntry {
+        public final Messenger subscriber;
+
+        public MessengerClient(Messenger subscriber) {
+            super(subscriber.getBinder());
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void notifyMatch(SubscriptionEntry subscription) throws RemoteException {
+            Message m = Message.obtain(null, MSG_PUB_PATTERN_MATCH);
+            // A shallow copy, the encoded pattern in it is not changed by TapPattern
+            m.setData(new Bundle(subscription.matchData));
+            this.subscriber.send(m);
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        public void sendTaps(TapStream.Batch batch) throws RemoteException {
+            Message m = Message.obtain(null, MSG_PUB_TAPS);
+            m.setData(batch.toBundle());
+            this.subscriber.send(m);
+        }
+
+        @Override
+        public String toString() {
+            return this.subscriber.toString();
+        }
+    }
 
-            SubscriptionEntry that = (SubscriptionEntry) o;
+    /**
+     * A client that talks to the service through {@link #detectorBinder}
+     */
+    private class ListenerClient extends ClientEntry {
+        public final ITapPatternListener listener;
 
-            if (!pattern.equals(that.pattern)) return false;
-            if (!subscriber.equals(that.subscriber)) return false;
+        public ListenerClient(ITapPatternListener listener) {
+            super(listener.asBinder());
+            this.listener = listener;
+        }
 
-            return true;
+        @Override
+        public void notifyMatch(SubscriptionEntry subscription) throws RemoteException {
+            this.listener.onPatternMatch(subscription.pattern);
         }
 
         @Override
-        public int hashCode() {
-            int result = subscriber.hashCode();
-            result = 31 * result + pattern.hashCode();
-            return result;
+        public void sendTaps(TapStream.Batch batch) throws RemoteException {
+            this.listener.onTaps(batch.timestamps, batch.sides, batch.retractions);
         }
 
-        /**
-         * Sort descending on pattern length
-         *
-         * @param subscriptionEntry the entry to be compared.
-         * @return a positive integer, zero, or a negative integer as this pattern is less than,
-         * equal to, or greater than the specified object.
-         */
         @Override
-        public int compareTo(SubscriptionEntry subscriptionEntry) {
-            return subscriptionEntry.pattern.size() - this.pattern.size();
+        public String toString() {
+            return this.listener.toString();
         }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.List;
+
+/**
+ * Detects taps by passing Linear Acceleration readings through a chain of {@link TapStage}s
+ * <p/>
+ * Every reading is put in a {@link TapFrame} and handed to the first stage. Stages filter and
+ * annotate readings and one of them turns readings into taps, all taps and retractions that reach
+ * the end of the chain are reported to the observers. A single frame is reused for all readings,
+ * so as long as the stages do not allocate neither does the pipeline.
+ * <p/>
+ * Once subscribed, readings are processed and observers notified on a dedicated high priority
+ * thread, so observers must hand taps over to their own threads quickly.
+ */
+public class TapPipeline extends BaseTapDetector {
+
+    /**
+     * The maximum number of readings processed at once when the sensors report in batches
+     */
+    private static final int MAX_BATCH_SIZE = 128;
+    private final TapStage first;
+    /**
+     * The frame readings are passed down the pipeline in
+     */
+    private final TapFrame reading;
+    /**
+     * The thread sensor events are delivered on while subscribed
+     */
+    private HandlerThread sensorThread;
+
+    /**
+     * Create a new pipeline
+     *
+     * @param stages The stages in the order readings are passed through them
+     */
+    public TapPipeline(TapStage... stages) {
+        super();
+        TapStage last = new TapStage() {
+            @Override
+            public void process(TapFrame frame) {
+                if (TapFrame.TAP == frame.kind) {
+                    notifyObservers(frame.timestamp, frame.now, frame.side);
+                } else if (TapFrame.RETRACTION == frame.kind) {
+                    notifyRetraction(frame.timestamp, frame.now, frame.side);
+                }
+            }
+        };
+        for (int i = stages.length - 1; i >= 0; i--) {
+            stages[i].setNext(last);
+            last = stages[i];
+        }
+        this.first = last;
+        this.reading = new TapFrame();
+    }
+
+    @Override
+    public void onSensorChanged(long timestamp, int senorType, int accuracy, float values[]) {
+        if (Sensor.TYPE_LINEAR_ACCELERATION != senorType) {
+            return;
+        }
+
+        this.process(timestamp, values, 0, values.length);
+    }
+
+    @Override
+    public void onSensorBatch(int sensorType, int accuracy, long timestamps[], float values[], int valuesPerSample, int offset, int count) {
+        if (Sensor.TYPE_LINEAR_ACCELERATION != sensorType) {
+            return;
+        }
+
+        for (int i = offset; i < offset + count; i++) {
+            this.process(timestamps[i], values, i * valuesPerSample, valuesPerSample);
+        }
+    }
+
+    private void process(long timestamp, float values[], int offset, int count) {
+        TapFrame frame = this.reading;
+        frame.kind = TapFrame.READING;
+        frame.timestamp = timestamp;
+        frame.now = timestamp;
+        for (int axis = 0; axis < SampleRingBuffer.AXES; axis++) {
+            frame.axes[axis] = axis < count ? values[offset + axis] : 0f;
+        }
+        frame.magnitude = 0f;
+        frame.threshold = 0f;
+        frame.side = DeviceSide.ANY;
+        this.first.process(frame);
+    }
+
+    @Override
+    public void onAccuracyChanged(int sensorType, int i) {
+    }
+
+    @Override
+    public void subscribeToSensors(SensorManager sensorManager) {
+        if (null == this.sensorThread) {
+            this.sensorThread = new HandlerThread(this.getClass().getSimpleName(), Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            this.sensorThread.start();
+        }
+        final Handler handler = new Handler(this.sensorThread.getLooper());
+
+        List<Sensor> sensors = sensorManager.getSensorList(Sensor.TYPE_LINEAR_ACCELERATION);
+        boolean batching = false;
+        for (Sensor s : sensors) {
+            if (this.getMaxReportLatency() > 0 && s.getFifoMaxEventCount() > 0) {
+                if (!batching) {
+                    // Posted before registering, so it runs on the sensor thread before any event
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            enableBatching(handler, MAX_BATCH_SIZE);
+                        }
+                    });
+                    batching = true;
+                }
+                sensorManager.registerListener(this, s, SensorManager.SENSOR_DELAY_FASTEST, this.getMaxReportLatency(), handler);
+            } else {
+                sensorManager.registerListener(this, s, SensorManager.SENSOR_DELAY_FASTEST, handler);
+            }
+        }
+    }
+
+    @Override
+    public void unsubscribeFromSensors(SensorManager sensorManager) {
+        sensorManager.unregisterListener(this);
+        if (null == this.sensorThread) {
+            return;
+        }
+
+        if (Thread.currentThread() == this.sensorThread) {
+            // An observer unsubscribes while it handles a tap, the thread cannot wait for itself
+            this.disableBatching();
+            this.sensorThread.quitSafely();
+            this.sensorThread = null;
+            return;
+        }
+
+        // Pass on collected readings on the sensor thread and stop it once that is done
+        new Handler(this.sensorThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                disableBatching();
+            }
+        });
+        this.sensorThread.quitSafely();
+        // The batching state is reused by the next subscription, it must not be touched anymore
+        try {
+            this.sensorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.sensorThread = null;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue to hand taps from one thread to another
+ * <p/>
+ * The queue is safe for exactly one producer thread calling
+ * {@link #offer(long, long, DeviceSide, boolean)} and one consumer thread calling
+ * {@link #poll(Tap)}. Neither of them ever blocks or allocates, if the queue is full new taps are
+ * rejected.
+ */
+public class TapQueue {
+
+    private static final DeviceSide SIDES[] = DeviceSide.values();
+
+    private final long timestamps[];
+    private final long nows[];
+    private final byte sides[];
+    private final boolean retractions[];
+    private final int mask;
+    /**
+     * Index of the next tap to be read, only written by the consumer
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Index of the next tap to be written, only written by the producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Create a new queue
+     *
+     * @param capacity The minimum number of taps the queue can hold. Will be rounded up to the
+     *                 next power of two
+     */
+    public TapQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.nows = new long[size];
+        this.sides = new byte[size];
+        this.retractions = new boolean[size];
+    }
+
+    /**
+     * Add a tap to the end of the queue. Must only be called from the producer thread.
+     *
+     * @param timestamp The timestamp of the tap
+     * @param now       The current time
+     * @param side      The side of the tap
+     * @return {@code true} if the tap has been added, {@code false} if the queue is full
+     */
+    public boolean offer(long timestamp, long now, DeviceSide side) {
+        return this.offer(timestamp, now, side, false);
+    }
+
+    /**
+     * Add a tap or the retraction of a tap to the end of the queue. Must only be called from the
+     * producer thread.
+     *
+     * @param timestamp  The timestamp of the tap
+     * @param now        The current time
+     * @param side       The side of the tap
+     * @param retraction {@code true} if the tap has been retracted, see
+     *                   {@link ITapDetector.TapObserver#onTapRetracted(long, long, DeviceSide)}
+     * @return {@code true} if the tap has been added, {@code false} if the queue is full
+     */
+    public boolean offer(long timestamp, long now, DeviceSide side, boolean retraction) {
+        long t = this.tail.get();
+        if (t - this.head.get() > this.mask) {
+            return false;
+        }
+        int i = (int) t & this.mask;
+        this.timestamps[i] = timestamp;
+        this.nows[i] = now;
+        this.sides[i] = (byte) side.ordinal();
+        this.retractions[i] = retraction;
+        // Publish the tap only after it has been written
+        this.tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the tap at the head of the queue. Must only be called from the consumer thread.
+     *
+     * @param out Receives the removed tap
+     * @return {@code true} if a tap has been removed, {@code false} if the queue is empty
+     */
+    public boolean poll(Tap out) {
+        long h = this.head.get();
+        if (h == this.tail.get()) {
+            return false;
+        }
+        int i = (int) h & this.mask;
+        out.timestamp = this.timestamps[i];
+        out.now = this.nows[i];
+        out.side = SIDES[this.sides[i]];
+        out.retraction = this.retractions[i];
+        // Release the slot only after it has been read
+        this.head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Check if there are taps in the queue
+     *
+     * @return {@code true} if there are no taps, {@code false} otherwise
+     */
+    public boolean isEmpty() {
+        return this.head.get() == this.tail.get();
+    }
+
+    /**
+     * Holder for a tap removed from the queue, to be reused by the consumer
+     */
+    public static class Tap {
+        public long timestamp;
+        public long now;
+        public DeviceSide side;
+        public boolean retraction;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+/**
+ * A single step of a {@link TapPipeline}
+ * <p/>
+ * Stages receive frames one by one and pass them on to the next stage with {@link #emit(TapFrame)}.
+ * A stage may drop frames, change them or emit frames of its own, for instance a peak detector
+ * turns readings into taps. Frames a stage does not handle should be passed on unchanged.
+ * <p/>
+ * Stages are called for every sensor reading, so they should not allocate memory while processing.
+ */
+public abstract class TapStage {
+
+    private TapStage next;
+
+    /**
+     * Process a frame
+     *
+     * @param frame The frame, only valid for the duration of the call
+     */
+    public abstract void process(TapFrame frame);
+
+    /**
+     * Pass a frame on to the next stage
+     *
+     * @param frame The frame
+     */
+    protected void emit(TapFrame frame) {
+        this.next.process(frame);
+    }
+
+    void setNext(TapStage next) {
+        this.next = next;
+    }
+}
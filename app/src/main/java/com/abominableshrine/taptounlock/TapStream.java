@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Hannes Bibel, Valentin Sawadski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abominableshrine.taptounlock;
+
+import android.os.Bundle;
+
+/**
+ * Taps waiting to be streamed to a client and the credit the client has left
+ * <p/>
+ * A client subscribes with a window, the number of taps it may have received without having
+ * acknowledged them. Taps are only handed out while the window is not used up, the rest waits
+ * until {@link #ack(int)} returns credit and is then handed out in a single {@link Batch}.
+ * <p/>
+ * At most a window of taps waits, if a client falls further behind the oldest taps are dropped.
+ * This keeps a slow client from building an unbounded backlog in the service.
+ */
+public class TapStream {
+
+    private static final DeviceSide SIDES[] = DeviceSide.values();
+
+    private final int window;
+    private final long timestamps[];
+    private final byte sides[];
+    private final boolean retractions[];
+    /**
+     * The index of the oldest waiting tap and the number of waiting taps
+     */
+    private int head;
+    private int pending;
+    /**
+     * The number of taps handed out but not yet acknowledged
+     */
+    private int inFlight;
+    private long droppedCount;
+
+    /**
+     * Create a new stream
+     *
+     * @param window The number of taps the client may have received without acknowledging them
+     */
+    public TapStream(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window: " + window);
+        }
+        this.window = window;
+        this.timestamps = new long[window];
+        this.sides = new byte[window];
+        this.retractions = new boolean[window];
+    }
+
+    /**
+     * Add a tap or the retraction of a tap to the end of the stream
+     * <p/>
+     * If a window of taps is already waiting the oldest one is dropped.
+     *
+     * @param timestamp  The timestamp of the tap
+     * @param side       The side of the tap
+     * @param retraction {@code true} if the tap has been retracted, see
+     *                   {@link ITapDetector.TapObserver#onTapRetracted(long, long, DeviceSide)}
+     */
+    public void offer(long timestamp, DeviceSide side, boolean retraction) {
+        if (this.pending == this.window) {
+            this.head = (this.head + 1) % this.window;
+            this.pending--;
+            this.droppedCount++;
+        }
+        int i = (this.head + this.pending) % this.window;
+        this.timestamps[i] = timestamp;
+        this.sides[i] = (byte) side.ordinal();
+        this.retractions[i] = retraction;
+        this.pending++;
+    }
+
+    /**
+     * Take the waiting taps the client has credit for
+     *
+     * @return The taps or {@code null} if there are none or the window is used up
+     */
+    public Batch poll() {
+        int n = Math.min(this.pending, this.window - this.inFlight);
+        if (n <= 0) {
+            return null;
+        }
+        Batch b = new Batch(new long[n], new byte[n], new boolean[n]);
+        for (int j = 0; j < n; j++) {
+            int i = (this.head + j) % this.window;
+            b.timestamps[j] = this.timestamps[i];
+            b.sides[j] = this.sides[i];
+            b.retractions[j] = this.retractions[i];
+        }
+        this.head = (this.head + n) % this.window;
+        this.pending -= n;
+        this.inFlight += n;
+        return b;
+    }
+
+    /**
+     * Return credit for taps the client has processed
+     *
+     * @param count The number of taps, more than are in flight are ignored
+     */
+    public void ack(int count) {
+        if (count > 0) {
+            this.inFlight -= Math.min(count, this.inFlight);
+        }
+    }
+
+    public int getWindow() {
+        return this.window;
+    }
+
+    /**
+     * The number of taps handed out but not yet acknowledged
+     */
+    public int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * The number of taps waiting for credit
+     */
+    public int getPendingCount() {
+        return this.pending;
+    }
+
+    /**
+     * The number of taps dropped because the client fell too far behind
+     */
+    public long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    /**
+     * Taps handed out together
+     * <p/>
+     * The arrays are sent as they are, receivers must not modify them.
+     */
+    public static class Batch {
+        final private static String KEY_TIMESTAMPS = "timestamps";
+        final private static String KEY_SIDES = "sides";
+        final private static String KEY_RETRACTIONS = "retractions";
+
+        public final long timestamps[];
+        public final byte sides[];
+        public final boolean retractions[];
+
+        public Batch(long timestamps[], byte sides[], boolean retractions[]) {
+            if (null == timestamps || null == sides || null == retractions
+                    || sides.length != timestamps.length || retractions.length != timestamps.length) {
+                throw new IllegalArgumentException();
+            }
+            this.timestamps = timestamps;
+            this.sides = sides;
+            this.retractions = retractions;
+        }
+
+        /**
+         * Create a batch from a bundle created by {@link #toBundle()}
+         *
+         * @param b The bundle
+         */
+        public Batch(Bundle b) {
+            this(b.getLongArray(KEY_TIMESTAMPS), b.getByteArray(KEY_SIDES), b.getBooleanArray(KEY_RETRACTIONS));
+        }
+
+        public Bundle toBundle() {
+            Bundle b = new Bundle();
+            b.putLongArray(KEY_TIMESTAMPS, this.timestamps);
+            b.putByteArray(KEY_SIDES, this.sides);
+            b.putBooleanArray(KEY_RETRACTIONS, this.retractions);
+            return b;
+        }
+
+        public int size() {
+            return this.timestamps.length;
+        }
+
+        public DeviceSide getSide(int i) {
+            return SIDES[this.sides[i]];
+        }
+    }
+}
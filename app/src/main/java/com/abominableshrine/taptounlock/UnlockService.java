@@ -29,9 +29,6 @@ import android.os.RemoteException;
 import android.util.Log;
 import android.view.KeyEvent;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-
 /**
  * The Service that can lock and unlock the device. It does so if it receives a message from
  * a client that tells it to do so.
@@ -69,6 +66,11 @@ public class UnlockService extends Service {
     // The client class is used to enable simple communication to the TapPatternDetectorService
     private UnlockServiceTapPatternDetectorClient mUnlockServiceTapPatternDetectorClient;
 
+    // The root shell is kept running, so locking and unlocking do not have to start one
+    private RootShell rootShell;
+    // The last lock, null if the device has been unlocked since
+    private RootShell.Job lockJob;
+
     // Variables used for the ScreenOffBroadcastReceiver
     private static ScreenOffBroadcastReceiver mScreenOffBroadcastReceiver;
     private IntentFilter screenOffFilter;
@@ -81,8 +83,16 @@ public class UnlockService extends Service {
         instance = this;
         running = true;
 
+        // Start the root shell now, so the superuser handshake is not part of the first unlock
+        if (null == rootShell) {
+            rootShell = new RootShell();
+            rootShell.start();
+        }
+
         // Initialize communication to the TapPatternDetectorService
         tapPatternDetectorServiceIntent = new Intent(this, TapPatternDetectorService.class);
+        // The typed interface saves building and parsing a bundle for every match
+        tapPatternDetectorServiceIntent.setAction(TapPatternDetectorService.ACTION_BIND_DETECTOR);
         bindService(tapPatternDetectorServiceIntent, mUnlockServiceConnection, Context.BIND_AUTO_CREATE);
 
         // Initialization of the ScreenOffBroadcastReceiver
@@ -104,6 +114,11 @@ public class UnlockService extends Service {
     public void onDestroy() {
         unregisterReceiver(mScreenOffBroadcastReceiver);
         lock();
+        if (null != rootShell) {
+            // The lock still runs before the shell exits
+            rootShell.close();
+            rootShell = null;
+        }
 
         // Unbind from the service
         if (mBound) {
@@ -125,17 +140,25 @@ public class UnlockService extends Service {
 
     /**
      * This method locks the device again with a pattern or password.
+     * <p/>
+     * Nothing is done if the device has already been locked and not been unlocked since, unless
+     * the last lock could not be run.
      *
      * @see #unlock()
      */
     private static void lock() {
+        RootShell.Job last = instance.lockJob;
+        if (null != last && (!last.isDone() || RootShell.FAILED != last.getExitCode())) {
+            if (DEBUG) Log.d(AppConstants.TAG, "Device already locked");
+            return;
+        }
 
         String[] shellCommands = {
                 "cd /data/system",
                 "mv passwordtemp.key password.key",
                 "mv gesturetemp.key gesture.key"
         };
-        runAsRoot(shellCommands);
+        instance.lockJob = instance.runAsRoot(shellCommands);
         if (DEBUG) Log.d(AppConstants.TAG, "Device locked");
     }
 
@@ -159,7 +182,8 @@ public class UnlockService extends Service {
                 "mv gesture.key gesturetemp.key",
                 "input keyevent " + Integer.toString(KeyEvent.KEYCODE_POWER)
         };
-        runAsRoot(shellCommands);
+        instance.lockJob = null;
+        instance.runAsRoot(shellCommands);
         if (DEBUG) Log.d(AppConstants.TAG, "Device unlocked");
 
         // TODO: Test if this is the right place to start the receiver again.
@@ -168,24 +192,18 @@ public class UnlockService extends Service {
 
     /**
      * This method takes a series of shell commands and executes them as superuser.
-     * Thanks to http://stackoverflow.com/questions/6882248/running-shell-commands-though-java-code-on-android
+     * <p/>
+     * The commands are queued for {@link #rootShell}, this does not wait for them to complete.
      *
      * @param commands The shell commands to be executed. One string for each command.
+     * @return The queued job or {@code null} if the service has been destroyed
      */
-    private static void runAsRoot(String[] commands) {
-        Process p;
-        try {
-            p = Runtime.getRuntime().exec("su");
-            DataOutputStream os = new DataOutputStream(p.getOutputStream());
-            for (String tmpCmd : commands) {
-                os.writeBytes(tmpCmd + "\n");
-                os.flush();
-            }
-            os.writeBytes("exit\n");
-            os.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private RootShell.Job runAsRoot(String[] commands) {
+        if (null == rootShell) {
+            if (DEBUG) Log.e(AppConstants.TAG, "No root shell, dropping commands");
+            return null;
         }
+        return rootShell.submit(commands);
     }
 
     public void stopReceiver() {